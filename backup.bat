@@ -6,5 +6,6 @@ set TESTAPP-MAIN="client.TestApp"
 set PEER-ID=%1
 set FILE-PATH=%2
 set REPLICATION=%3
+set MODE=%4
 
-java --class-path %CLASS-PATH% %TESTAPP-MAIN% "accesspoint%PEER-ID%" "BACKUP" %FILE-PATH% %REPLICATION%
\ No newline at end of file
+java --class-path %CLASS-PATH% %TESTAPP-MAIN% "accesspoint%PEER-ID%" "BACKUP" %FILE-PATH% %REPLICATION% %MODE%
\ No newline at end of file
@@ -6,5 +6,6 @@ TESTAPP_MAIN="client.TestApp"
 PEER_ID=$1
 FILE_PATH=$2
 REPLICATION=$3
+MODE=$4
 
-java --class-path $CLASS_PATH $TESTAPP_MAIN "accesspoint$PEER_ID" "BACKUP" $FILE_PATH $REPLICATION
\ No newline at end of file
+java --class-path $CLASS_PATH $TESTAPP_MAIN "accesspoint$PEER_ID" "BACKUP" $FILE_PATH $REPLICATION $MODE
\ No newline at end of file
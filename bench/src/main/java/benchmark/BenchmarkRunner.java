@@ -0,0 +1,46 @@
+package benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * Entry point of the benchmarks jar, taking the same arguments as the JMH launcher
+ *
+ * The GC profiler is always enabled, so the allocation rate of every benchmark is reported next to its throughput.
+ */
+public class BenchmarkRunner {
+    /**
+     * Runs the benchmarks selected by the command line arguments, or all of them if there is none
+     *
+     * @param args JMH command line arguments (run with -h for the full list)
+     *
+     * @throws RunnerException on failure to run the benchmarks
+     * @throws IOException on failure to read the list of benchmarks
+     */
+    public static void main(String[] args) throws RunnerException, IOException {
+        CommandLineOptions commandLine;
+        try {
+            commandLine = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        // Listing and help requests don't run anything, so they're left to the JMH launcher
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams() ||
+                commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+}
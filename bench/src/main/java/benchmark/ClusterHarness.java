@@ -0,0 +1,221 @@
+package benchmark;
+
+import peer.PeerContext;
+import peer.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Load harness running a whole cluster of peers on a single JVM, over multicast on the loopback interface
+ *
+ * The harness backs up a set of files generated from a fixed seed, restores and checks them, reclaims the storage of
+ * some peers and finally deletes the files, measuring the latency of every operation and the throughput of each
+ * protocol. The initiators take turns, file i being handled by peer i % PEERS + 1. Operations run one at a time, so
+ * that runs with the same arguments are comparable.
+ *
+ * Usage: {@code ClusterHarness [PEERS] [VERSION] [FILES] [FILE_SIZE] [REPLICATION_DEGREE] [THREADS]}, by default 10
+ * peers running the protocol version 2.0, backing up 10 files of 1000000 bytes with replication degree 3. THREADS is
+ * either platform (default) or virtual, so that runs of both kinds of workers can be compared.
+ */
+public class ClusterHarness {
+    private static final long SEED = 42;
+    private static final int BASE_PORT = 4460;
+
+    private final List<PeerContext> peers = new ArrayList<>();
+    private final List<Service> services = new ArrayList<>();
+    private final List<File> files = new ArrayList<>();
+
+    /**
+     * Main method running the harness, configured based on the given command line arguments
+     *
+     * @param args command line arguments used to define the cluster and its load
+     * @throws IOException on failure to create the peers' directories or the files backed up
+     */
+    public static void main(String[] args) throws IOException {
+        int peerNum = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String version = args.length > 1 ? args[1] : "2.0";
+        int fileNum = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int fileSize = args.length > 3 ? Integer.parseInt(args[3]) : 1_000_000;
+        int replicationDegree = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+        boolean virtualThreads = args.length > 5 && args[5].equals("virtual");
+
+        // Read once when the peers are first loaded
+        System.setProperty("peer.virtualThreads", Boolean.toString(virtualThreads));
+
+        File directory = Files.createTempDirectory("cluster").toFile();
+        ClusterHarness harness = new ClusterHarness();
+        try {
+            harness.start(directory, peerNum, version);
+            harness.generateFiles(new File(directory, "files"), fileNum, fileSize);
+            harness.run(replicationDegree);
+        } finally {
+            harness.stop();
+            delete(directory);
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Starts the peers of the cluster, each one on its own directory
+     */
+    private void start(File directory, int peerNum, String version) throws IOException {
+        System.setProperty("peer.networkInterface",
+                NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress()).getName());
+
+        for (int id = 1; id <= peerNum; id++) {
+            PeerContext context = new PeerContext(version, id, new File(directory, "peer" + id),
+                    "224.0.0.101", BASE_PORT, "224.0.0.102", BASE_PORT + 1, "224.0.0.103", BASE_PORT + 2);
+            context.start();
+
+            peers.add(context);
+            services.add(new Service(context));
+        }
+
+        PeerContext context = peers.get(0);
+        System.out.println("Started " + peerNum + " peers running version " + version + " on "
+                + (context.usesVirtualThreads() ? "virtual" : "platform") + " threads, with backup window "
+                + context.getBackupWindow() + " and restore window " + context.getRestoreWindow() + ".");
+    }
+
+    private void stop() {
+        for (PeerContext context : peers)
+            context.close();
+    }
+
+    /**
+     * Generates the files to be backed up, with random contents from the harness' seed
+     */
+    private void generateFiles(File directory, int fileNum, int fileSize) throws IOException {
+        directory.mkdirs();
+
+        Random random = new Random(SEED);
+        byte[] contents = new byte[fileSize];
+        for (int i = 0; i < fileNum; i++) {
+            random.nextBytes(contents);
+
+            File file = new File(directory, "file" + i + ".bin");
+            Files.write(file.toPath(), contents);
+            files.add(file);
+        }
+    }
+
+    /**
+     * Runs every protocol in turn, printing its results
+     */
+    private void run(int replicationDegree) throws IOException {
+        Results backup = new Results("BACKUP");
+        for (int i = 0; i < files.size(); i++) {
+            Service service = initiator(i);
+            String path = files.get(i).getPath();
+
+            long start = System.nanoTime();
+            boolean success = service.backup(path, replicationDegree);
+            backup.add(System.nanoTime() - start, files.get(i).length(), success);
+        }
+
+        Results restore = new Results("RESTORE");
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+
+            long start = System.nanoTime();
+            boolean success = initiator(i).restore(file.getPath());
+            long latency = System.nanoTime() - start;
+
+            File restored = new File(initiatorContext(i).getDirectory(), "restored/" + file.getName());
+            success = success &&
+                    Arrays.equals(Files.readAllBytes(file.toPath()), Files.readAllBytes(restored.toPath()));
+            restore.add(latency, file.length(), success);
+        }
+
+        // The last peers give up their storage, the chunks they held being backed up again by the other peers
+        Results reclaim = new Results("RECLAIM");
+        for (int i = Math.max(1, peers.size() - Math.max(1, peers.size() / 5)); i < peers.size(); i++) {
+            long start = System.nanoTime();
+            boolean success = services.get(i).reclaim(0);
+            reclaim.add(System.nanoTime() - start, 0, success);
+        }
+
+        Results delete = new Results("DELETE");
+        for (int i = 0; i < files.size(); i++) {
+            long start = System.nanoTime();
+            boolean success = initiator(i).delete(files.get(i).getPath());
+            delete.add(System.nanoTime() - start, 0, success);
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-8s %5s %7s %10s %10s %10s %10s %10s",
+                "Protocol", "Ops", "Failed", "MB/s", "Mean ms", "p50 ms", "p90 ms", "Max ms"));
+        for (Results results : new Results[] {backup, restore, reclaim, delete})
+            System.out.println(results);
+    }
+
+    private Service initiator(int file) {
+        return services.get(file % services.size());
+    }
+
+    private PeerContext initiatorContext(int file) {
+        return peers.get(file % peers.size());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Latencies and amount of data of the operations of a protocol
+     */
+    private static class Results {
+        private final String protocol;
+        private final List<Long> latencies = new ArrayList<>();
+        private long bytes = 0;
+        private int failed = 0;
+
+        Results(String protocol) {
+            this.protocol = protocol;
+        }
+
+        void add(long latency, long bytes, boolean success) {
+            this.latencies.add(latency);
+            this.bytes += bytes;
+            if (!success)
+                this.failed++;
+        }
+
+        @Override
+        public String toString() {
+            if (latencies.isEmpty())
+                return String.format("%-8s %5d", protocol, 0);
+
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+
+            long total = 0;
+            for (long latency : sorted)
+                total += latency;
+
+            return String.format("%-8s %5d %7d %10.2f %10.1f %10.1f %10.1f %10.1f", protocol, sorted.size(), failed,
+                    bytes / 1e6 / (total / 1e9), total / 1e6 / sorted.size(), percentile(sorted, 0.5) / 1e6,
+                    percentile(sorted, 0.9) / 1e6, sorted.get(sorted.size() - 1) / 1e6);
+        }
+
+        private static long percentile(List<Long> sorted, double percentile) {
+            return sorted.get((int) Math.ceil(percentile * sorted.size()) - 1);
+        }
+    }
+}
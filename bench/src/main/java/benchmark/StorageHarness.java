@@ -0,0 +1,200 @@
+package benchmark;
+
+import peer.PeerContext;
+import storage.StorageManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Harness measuring the footprint of the storage of a single peer, which JMH can't measure
+ *
+ * For every store size, the harness stores that many small chunks, grouped in files of 100 chunks, and reports the
+ * heap taken per stored chunk. It then restarts the peer's storage, reporting the time taken to recover the chunks and
+ * the heap taken per recovered chunk. The heap is measured after a full GC, so run it with a heap large enough for the
+ * largest store and no other load. Finally, it stores successive versions of a disk image like file, to report the
+ * disk saved by storing the contents shared by several chunks only once.
+ *
+ * Usage: {@code StorageHarness [CHUNKS...]}, by default 100000 and 1000000 chunks.
+ */
+public class StorageHarness {
+    private static final int CHUNK_SIZE = 64;
+    private static final int FILE_CHUNKS = 100;
+    private static final int THREADS = 16;
+    private static final int IMAGE_CHUNK_SIZE = 64000, IMAGE_CHUNKS = 200, IMAGE_VERSIONS = 5;
+
+    /**
+     * Main method running the harness on the given store sizes
+     *
+     * @param args command line arguments with the store sizes, in chunks
+     * @throws Exception on failure to store or recover the chunks
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("peer.scrubRate", "0");
+        System.setProperty("peer.networkInterface",
+                NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress()).getName());
+
+        List<Integer> sizes = new ArrayList<>();
+        for (String arg : args)
+            sizes.add(Integer.parseInt(arg));
+        if (sizes.isEmpty())
+            sizes = List.of(100_000, 1_000_000);
+
+        System.out.println(String.format("%-10s %10s %12s %12s %12s", "Chunks", "Store s", "Heap B/chunk",
+                "Recovery ms", "Heap B/chunk"));
+        for (int size : sizes)
+            measureFootprint(size);
+
+        System.out.println();
+        measureDeduplication();
+
+        System.exit(0);
+    }
+
+    /**
+     * Stores the given number of chunks and restarts the storage, printing the heap taken by the chunks in both cases
+     * and the time taken by the recovery
+     */
+    private static void measureFootprint(int chunkNum) throws IOException, InterruptedException, ExecutionException {
+        File directory = Files.createTempDirectory("storage").toFile();
+        try {
+            PeerContext context = open(directory);
+            long baseHeap = usedHeap();
+
+            long start = System.nanoTime();
+            store(context.getStorageManager(), chunkNum);
+            long storeTime = System.nanoTime() - start;
+            long storedHeap = usedHeap() - baseHeap;
+            context.close();
+
+            // The closed storage must be unreachable before measuring the heap without it
+            context = null;
+            baseHeap = usedHeap();
+            start = System.nanoTime();
+            context = open(directory);
+            long recoveryTime = System.nanoTime() - start;
+            long recoveredHeap = usedHeap() - baseHeap;
+            context.close();
+
+            System.out.println(String.format("%-10d %10.1f %12d %12d %12d", chunkNum, storeTime / 1e9,
+                    storedHeap / chunkNum, recoveryTime / 1000000, recoveredHeap / chunkNum));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Stores every version of a disk image like file, printing the bytes of the chunks and the bytes on disk
+     *
+     * A third of the image is zeroed and every version changes a tenth of the chunks of the previous one.
+     */
+    private static void measureDeduplication() throws IOException {
+        File directory = Files.createTempDirectory("storage").toFile();
+        try {
+            PeerContext context = open(directory);
+            StorageManager storageManager = context.getStorageManager();
+
+            Random random = new Random(42);
+            byte[][] image = new byte[IMAGE_CHUNKS][IMAGE_CHUNK_SIZE];
+            for (int i = 0; i < IMAGE_CHUNKS; i++) {
+                if (i % 3 != 0)
+                    random.nextBytes(image[i]);
+            }
+
+            long chunkBytes = 0;
+            for (int version = 0; version < IMAGE_VERSIONS; version++) {
+                for (int i = 0; i < IMAGE_CHUNKS && version > 0; i++) {
+                    if (random.nextInt(10) == 0)
+                        random.nextBytes(image[i]);
+                }
+
+                for (int i = 0; i < IMAGE_CHUNKS; i++) {
+                    storageManager.storeChunk(fileId(version), i, 1, ByteBuffer.wrap(image[i]));
+                    chunkBytes += image[i].length;
+                }
+            }
+
+            long storedBytes = storageManager.getStoredBytes();
+            context.close();
+
+            System.out.println(String.format("Deduplication: %d versions of a %d KB image, %.1f MB of chunks " +
+                    "stored in %.1f MB (%.1f%% saved)", IMAGE_VERSIONS, IMAGE_CHUNKS * IMAGE_CHUNK_SIZE / 1000,
+                    chunkBytes / 1e6, storedBytes / 1e6, 100 - 100d * storedBytes / chunkBytes));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Opens the storage of a peer on the given directory, recovering the chunks it holds
+     */
+    private static PeerContext open(File directory) throws IOException {
+        PeerContext context = new PeerContext("1.0", 0, directory, "224.0.0.250", 4450, "224.0.0.251", 4451,
+                "224.0.0.252", 4452);
+        context.getStorageManager().storageSetup();
+        return context;
+    }
+
+    /**
+     * Stores chunks with distinct contents from several threads, as done by the workers of a peer
+     */
+    private static void store(StorageManager storageManager, int chunkNum)
+            throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                int first = thread;
+                results.add(pool.submit(() -> {
+                    ByteBuffer body = ByteBuffer.allocate(CHUNK_SIZE);
+                    for (int i = first; i < chunkNum; i += THREADS) {
+                        body.clear();
+                        body.putInt(0, i);
+                        storageManager.storeChunk(fileId(i / FILE_CHUNKS), i % FILE_CHUNKS, 1, body);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results)
+                result.get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static String fileId(int n) {
+        return String.format("%064x", n);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+}
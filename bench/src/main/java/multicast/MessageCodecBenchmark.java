@@ -0,0 +1,78 @@
+package multicast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Benchmarks of the wire format of the messages, as done for every datagram sent and received on the channels
+ *
+ * PUTCHUNK and CHUNK messages carry a full 64000 byte chunk. GETCHUNK messages advertise a unicast port.
+ *
+ * @see MessageCodec
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MessageCodecBenchmark {
+    private static final String FILE_ID = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    private static final int CHUNK_SIZE = 64000;
+
+    @Param({"PUTCHUNK", "STORED", "GETCHUNK", "CHUNK"})
+    private MessageType type;
+
+    private Message message;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(65000);
+    private ByteBuffer receiveBuffer;
+
+    @Setup
+    public void setup() {
+        byte[] body = null;
+        if (type == MessageType.PUTCHUNK || type == MessageType.CHUNK) {
+            body = new byte[CHUNK_SIZE];
+            new Random(42).nextBytes(body);
+        }
+
+        message = new Message(type, "2.0", 1, FILE_ID, 17, 3, body);
+        if (type == MessageType.GETCHUNK)
+            message = message.withPort(40000);
+
+        // Received datagrams are held on heap buffers, as the default buffer pool allocates them
+        receiveBuffer = ByteBuffer.allocate(65000);
+        MessageCodec.encode(message, receiveBuffer);
+        receiveBuffer.flip();
+    }
+
+    /**
+     * Encodes a message into the send buffer of a channel
+     */
+    @Benchmark
+    public ByteBuffer encode() {
+        sendBuffer.clear();
+        MessageCodec.encode(message, sendBuffer);
+        return sendBuffer;
+    }
+
+    /**
+     * Decodes a received datagram, reading the fields the workers look at
+     */
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        receiveBuffer.rewind();
+        Message received = MessageCodec.decode(receiveBuffer, null);
+
+        blackhole.consume(received.getFileId());
+        blackhole.consume(received.getChunkNo());
+        blackhole.consume(received.getBody());
+    }
+}
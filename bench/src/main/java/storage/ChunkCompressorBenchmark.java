@@ -0,0 +1,125 @@
+package storage;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Benchmark of the compression of the chunks backed up with the protocol versions 1.1 and 2.1, across compression
+ * levels and kinds of contents
+ *
+ * Besides the throughput of each operation, the compression reports the bytes of chunk contents and the bytes sent on
+ * the wire per second, their ratio being the savings of the level on that kind of contents. The level is read by
+ * ChunkCompressor once, so it is set on every trial's own JVM before the first chunk is compressed.
+ *
+ * @see ChunkCompressor
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkCompressorBenchmark {
+    private static final int CHUNK_NUM = 16;
+
+    @Param({"1", "6", "9"})
+    private int level;
+
+    /**
+     * Contents of the chunks: random bytes, which don't compress, English-like text, or a disk image like mix of
+     * zeroed blocks, repeated blocks and random bytes
+     */
+    @Param({"random", "text", "image"})
+    private String contents;
+
+    private final byte[][] chunks = new byte[CHUNK_NUM][];
+    private final ByteBuffer[] compressed = new ByteBuffer[CHUNK_NUM];
+    private int chunkNo;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        System.setProperty("peer.compressionLevel", Integer.toString(level));
+
+        Random random = new Random(42);
+        for (int i = 0; i < CHUNK_NUM; i++) {
+            chunks[i] = generate(contents, random);
+            compressed[i] = ByteBuffer.wrap(ChunkCompressor.compress(chunks[i]));
+        }
+    }
+
+    /**
+     * Bytes of chunk contents compressed and of compressed chunks produced, reported per second
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long chunkBytes, wireBytes;
+    }
+
+    @Benchmark
+    public byte[] compress(Bytes bytes) {
+        chunkNo = (chunkNo + 1) % CHUNK_NUM;
+
+        byte[] body = ChunkCompressor.compress(chunks[chunkNo]);
+        bytes.chunkBytes += chunks[chunkNo].length;
+        bytes.wireBytes += body.length;
+        return body;
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        chunkNo = (chunkNo + 1) % CHUNK_NUM;
+        return ChunkCompressor.decompress(compressed[chunkNo]);
+    }
+
+    /**
+     * Generates the contents of a full chunk
+     */
+    static byte[] generate(String contents, Random random) {
+        byte[] chunk = new byte[FileInfo.CHUNK_SIZE];
+
+        switch (contents) {
+            case "random":
+                random.nextBytes(chunk);
+                break;
+            case "text":
+                String[] words = {"the", "chunk", "of", "a", "file", "is", "backed", "up", "by", "peers", "and",
+                        "restored", "from", "multicast", "channel", "with", "replication", "degree", "storage"};
+                StringBuilder text = new StringBuilder();
+                while (text.length() < chunk.length)
+                    text.append(words[random.nextInt(words.length)]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+                System.arraycopy(text.toString().getBytes(), 0, chunk, 0, chunk.length);
+                break;
+            case "image":
+                // Blocks of 4 KB: half of them zeroed, a quarter repeating the first block and a quarter random
+                byte[] block = new byte[4096];
+                random.nextBytes(block);
+                for (int offset = 0; offset < chunk.length; offset += block.length) {
+                    int length = Math.min(block.length, chunk.length - offset);
+                    int kind = random.nextInt(4);
+                    if (kind == 2) {
+                        System.arraycopy(block, 0, chunk, offset, length);
+                    } else if (kind == 3) {
+                        byte[] noise = new byte[length];
+                        random.nextBytes(noise);
+                        System.arraycopy(noise, 0, chunk, offset, length);
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown contents: " + contents);
+        }
+
+        return chunk;
+    }
+}
@@ -0,0 +1,64 @@
+package storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Benchmark of a chunk index shared by the workers of a peer, looked up and updated from several threads at once
+ *
+ * The index holds 100000 chunks in files of 100 chunks, as the primary index of a peer storing them would. Every
+ * benchmark runs on 8 threads, the size of the multicast worker pool.
+ *
+ * @see ChunkIndex
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkIndexBenchmark {
+    private static final int CHUNK_NUM = 100_000;
+
+    @Param({"0", "10"})
+    private int writePercentage;
+
+    private final ChunkIndex<Boolean> index = new ChunkIndex<>();
+    private final String[] fileIds = new String[CHUNK_NUM / StorageBenchmark.FILE_CHUNKS];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int i = 0; i < fileIds.length; i++)
+            fileIds[i] = StorageBenchmark.fileId(i);
+
+        for (int i = 0; i < CHUNK_NUM; i++)
+            index.put(fileIds[i / StorageBenchmark.FILE_CHUNKS], i % StorageBenchmark.FILE_CHUNKS, Boolean.TRUE);
+    }
+
+    /**
+     * Looks up a random chunk, or removes it and adds it back for the given percentage of the invocations, as done by
+     * the flags of the workers
+     */
+    @Benchmark
+    public Boolean lookup() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(CHUNK_NUM);
+        String fileId = fileIds[i / StorageBenchmark.FILE_CHUNKS];
+        int chunkNo = i % StorageBenchmark.FILE_CHUNKS;
+
+        if (random.nextInt(100) >= writePercentage)
+            return index.get(fileId, chunkNo);
+
+        index.remove(fileId, chunkNo);
+        return index.put(fileId, chunkNo, Boolean.TRUE);
+    }
+}
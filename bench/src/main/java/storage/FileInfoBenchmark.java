@@ -0,0 +1,63 @@
+package storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Benchmark of the reads of the chunks of a file being backed up, going through its 64 chunks in order
+ *
+ * The file is small enough to stay on the page cache, so the benchmark measures the cost of the reads themselves.
+ *
+ * @see FileInfo
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FileInfoBenchmark {
+    private static final int CHUNK_NUM = 64;
+
+    private File file;
+    private FileInfo fileInfo;
+    private FileChannel channel;
+    private int chunkNo;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("bench", ".bin");
+
+        byte[] contents = new byte[CHUNK_NUM * FileInfo.CHUNK_SIZE];
+        new Random(42).nextBytes(contents);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents);
+        }
+
+        fileInfo = new FileInfo(file, 1, false);
+        channel = fileInfo.openChannel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] retrieveChunk() throws IOException {
+        chunkNo = (chunkNo + 1) % CHUNK_NUM;
+        return fileInfo.retrieveChunk(channel, chunkNo);
+    }
+}
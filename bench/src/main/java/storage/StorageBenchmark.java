@@ -0,0 +1,207 @@
+package storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import peer.PeerContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the storage of a peer holding a given number of chunks, as done when processing the messages of the
+ * other peers
+ *
+ * Every trial runs on its own JVM, with a fresh store on a temporary directory, deleted at the end. The stored chunks
+ * are 1000 bytes long, so that large stores fit a laptop, grouped in files of 100 chunks. The peer's channels are
+ * opened on the loopback interface, where the REMOVED messages sent on a reclaim go, but it processes no messages.
+ *
+ * @see StorageManager
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Dpeer.scrubRate=0")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StorageBenchmark {
+    static final int CHUNK_SIZE = 1000;
+    static final int FILE_CHUNKS = 100;
+
+    private static final String NEW_FILE_ID = fileId(Integer.MAX_VALUE);
+    private static final String VICTIM_FILE_ID = fileId(Integer.MAX_VALUE - 1);
+
+    @Param({"1000", "10000", "100000"})
+    private int storeSize;
+
+    // Shared with the thread states, as every trial runs on its own JVM
+    private static StorageManager storageManager;
+
+    private File directory;
+    private PeerContext context;
+    private String[] fileIds;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("storage").toFile();
+
+        System.setProperty("peer.networkInterface",
+                NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress()).getName());
+        context = new PeerContext("1.0", 0, directory, "224.0.0.250", 4450, "224.0.0.251", 4451, "224.0.0.252", 4452);
+        storageManager = context.getStorageManager();
+        storageManager.storageSetup();
+
+        fileIds = new String[(storeSize + FILE_CHUNKS - 1) / FILE_CHUNKS];
+        Random random = new Random(42);
+        for (int i = 0; i < storeSize; i++) {
+            if (i % FILE_CHUNKS == 0)
+                fileIds[i / FILE_CHUNKS] = fileId(i / FILE_CHUNKS);
+
+            storageManager.storeChunk(fileIds[i / FILE_CHUNKS], i % FILE_CHUNKS, 1, randomChunk(random));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        delete(directory);
+    }
+
+    /**
+     * Stores chunks of a new file, one per invocation, deleting them at the end of every iteration
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        private final ByteBuffer body = randomChunk(new Random(7));
+        private int chunkNo;
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            storageManager.deleteChunks(NEW_FILE_ID);
+            chunkNo = 0;
+        }
+    }
+
+    /**
+     * Stores a whole file before every invocation, to be deleted or reclaimed by it
+     *
+     * Its chunks are made more redundant than every other chunk, so a reclaim deletes them first.
+     */
+    @State(Scope.Thread)
+    public static class Victim {
+        private final ByteBuffer[] bodies = new ByteBuffer[FILE_CHUNKS];
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Random random = new Random(13);
+            for (int i = 0; i < FILE_CHUNKS; i++)
+                bodies[i] = randomChunk(random);
+        }
+
+        @Setup(Level.Invocation)
+        public void store() throws IOException {
+            storageManager.reclaimSpace(Double.MAX_VALUE);
+
+            for (int i = 0; i < FILE_CHUNKS; i++) {
+                storageManager.storeChunk(VICTIM_FILE_ID, i, 1, bodies[i].rewind());
+                storageManager.signalStoreChunk(VICTIM_FILE_ID, i);
+                storageManager.signalStoreChunk(VICTIM_FILE_ID, i);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean storeChunk(Writer writer) throws IOException {
+        // Every chunk has new contents, so none of them is deduplicated
+        writer.body.putInt(0, writer.chunkNo).rewind();
+        return storageManager.storeChunk(NEW_FILE_ID, writer.chunkNo++, 1, writer.body);
+    }
+
+    @Benchmark
+    public byte[] getChunk() throws IOException {
+        int i = ThreadLocalRandom.current().nextInt(storeSize);
+        return storageManager.getChunk(fileIds[i / FILE_CHUNKS], i % FILE_CHUNKS);
+    }
+
+    @Benchmark
+    public int getChunkReplication() {
+        int i = ThreadLocalRandom.current().nextInt(storeSize);
+        return storageManager.getChunkReplication(fileIds[i / FILE_CHUNKS], i % FILE_CHUNKS);
+    }
+
+    /**
+     * Signals a STORED and a REMOVED message for a stored chunk, going through ChunkInfo.incReplication and
+     * decReplication, so that the replication of the chunks doesn't grow over the benchmark
+     */
+    @Benchmark
+    public void incReplication() {
+        int i = ThreadLocalRandom.current().nextInt(storeSize);
+        storageManager.signalStoreChunk(fileIds[i / FILE_CHUNKS], i % FILE_CHUNKS);
+        storageManager.signalRemoveChunk(fileIds[i / FILE_CHUNKS], i % FILE_CHUNKS);
+    }
+
+    /**
+     * Retrieves a page of 100 stored chunks from the middle of the state of the peer, as done by the STATE command
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public StorageState getStatePage() {
+        return storageManager.getState(null, storeSize / 2, 100);
+    }
+
+    /**
+     * Deletes all chunks of a file of 100 chunks
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void deleteChunks(Victim victim) {
+        storageManager.deleteChunks(VICTIM_FILE_ID);
+    }
+
+    /**
+     * Reclaims the space of 100 chunks, sending a REMOVED message for each of them
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void reclaimSpace(Victim victim) {
+        storageManager.reclaimSpace((double) storeSize * CHUNK_SIZE / 1000);
+    }
+
+    static String fileId(int n) {
+        return String.format("%064x", n);
+    }
+
+    static ByteBuffer randomChunk(Random random) {
+        byte[] body = new byte[CHUNK_SIZE];
+        random.nextBytes(body);
+        return ByteBuffer.wrap(body);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,8 @@
+#!/bin/sh
+
+CLASS_PATH="./build/production/SDIS1819_T1"
+TESTAPP_MAIN="client.TestApp"
+
+PEER_ID=$1
+
+java --class-path $CLASS_PATH $TESTAPP_MAIN "accesspoint$PEER_ID" "METRICS"
\ No newline at end of file
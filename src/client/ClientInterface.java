@@ -1,5 +1,7 @@
 package client;
 
+import storage.StorageState;
+
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
@@ -17,6 +19,21 @@ public interface ClientInterface extends Remote {
      */
     boolean backup(String path, int replicationDegree) throws RemoteException;
 
+    /**
+     * This Remote Method starts the backup protocol, optionally as an incremental backup of a new version of a file
+     * backed up before
+     *
+     * An incremental backup only sends the chunks that changed since the previous version, the peers storing the
+     * unchanged chunks keeping them for the new version. The previous version is deleted afterwards.
+     *
+     * @param path Path of the file in the peer's filesystem to be backed up
+     * @param replicationDegree Desired replication degree for the file to be backed up
+     * @param incremental Whether the backup is incremental or not
+     * @return Boolean representing if the backup was fully successful or not
+     * @throws RemoteException on RMI failure
+     */
+    boolean backup(String path, int replicationDegree, boolean incremental) throws RemoteException;
+
     /**
      * This remote method starts the restore protocol
      *
@@ -45,9 +62,38 @@ public interface ClientInterface extends Remote {
     boolean reclaim(double diskSpace) throws RemoteException;
 
     /**
-     * This remote method fetches the peer's current state in a human readable format
+     * This remote method fetches the peer's current state in a human readable format, covering every backed up file
+     * and every stored chunk
+     *
      * @return String with the peer's current state in a human readble format
      * @throws RemoteException on RMI failure
      */
     String state() throws RemoteException;
+
+    /**
+     * This remote method fetches a snapshot of the peer's current state, with its totals and a page of its backed up
+     * files and of its stored chunks
+     *
+     * The filter keeps the files whose path contains it or whose id starts with it, and the chunks whose file id starts
+     * with it. The offset and limit apply to the matching files and to the matching chunks alike, a limit of 0 fetching
+     * the totals alone.
+     *
+     * @param filter Filter of the files and chunks, or null to keep every one of them
+     * @param offset Number of matching files, and of matching chunks, skipped before the page
+     * @param limit Maximum number of files, and of chunks, on the page
+     * @return Snapshot of the peer's current state
+     * @throws RemoteException on RMI failure
+     */
+    StorageState state(String filter, int offset, int limit) throws RemoteException;
+
+    /**
+     * This remote method fetches the metrics of the peer's protocols in a human readable format
+     *
+     * The metrics cover the messages received per channel and type, the retransmissions and time to replication
+     * degree of the chunks backed up, the latency of the chunks restored, the stored bytes and the queued tasks.
+     *
+     * @return String with the peer's metrics in a human readable format
+     * @throws RemoteException on RMI failure
+     */
+    String metrics() throws RemoteException;
 }
\ No newline at end of file
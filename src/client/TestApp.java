@@ -1,5 +1,7 @@
 package client;
 
+import storage.StorageState;
+
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 
@@ -19,7 +21,8 @@ public class TestApp {
 
             switch (args[1]) {
                 case "BACKUP":
-                    if (stub.backup(args[2], Integer.parseInt(args[3])))
+                    boolean incremental = args.length > 4 && args[4].equals("INCREMENTAL");
+                    if (stub.backup(args[2], Integer.parseInt(args[3]), incremental))
                         System.out.println("Backup command for \"" + args[2] + "\" was successful.");
                     else
                         System.out.println("WARNING: Backup command ended. Replication degree not fully met");
@@ -43,12 +46,25 @@ public class TestApp {
                         System.out.println("ERROR: Reclaim command has failed.");
                     break;
                 case "STATE":
+                    if (args.length > 3) {
+                        printState(stub.state(args.length > 4 ? args[4] : null, Integer.parseInt(args[2]),
+                                Integer.parseInt(args[3])));
+                        break;
+                    }
+
                     String stateInfo = stub.state();
                     if (stateInfo != null)
                         System.out.print(stateInfo);
                     else
                         System.out.println("ERROR: State command has failed.");
                     break;
+                case "METRICS":
+                    String metrics = stub.metrics();
+                    if (metrics != null)
+                        System.out.print(metrics);
+                    else
+                        System.out.println("ERROR: Metrics command has failed.");
+                    break;
                 default:
                     break;
             }
@@ -56,4 +72,25 @@ public class TestApp {
             System.err.println("TestApp - RMI exception: " + e.toString());
         }
     }
+
+    /**
+     * Prints a page of the state of a peer, followed by its totals
+     *
+     * @param state Snapshot of the peer's state, or null if the command failed
+     */
+    private static void printState(StorageState state) {
+        if (state == null) {
+            System.out.println("ERROR: State command has failed.");
+            return;
+        }
+
+        System.out.print(state);
+        System.out.println("- Showing files " + range(state.getOffset(), state.getFiles().size()) + " of " +
+                state.getFileCount() + ", chunks " + range(state.getOffset(), state.getChunks().size()) + " of " +
+                state.getChunkCount() + " (" + state.getUnderReplicatedChunks() + " under replicated)");
+    }
+
+    private static String range(int offset, int size) {
+        return size == 0 ? "none" : (offset + 1) + "-" + (offset + size);
+    }
 }
\ No newline at end of file
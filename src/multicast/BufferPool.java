@@ -0,0 +1,58 @@
+package multicast;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable buffers for receiving datagrams, so that the receive path doesn't allocate a buffer per message
+ *
+ * Buffers beyond the pool capacity are simply left to the garbage collector when released.
+ */
+public class BufferPool {
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final int bufferSize, capacity;
+    private final boolean direct;
+
+    /**
+     * Constructor creating an empty pool of buffers
+     *
+     * @param bufferSize Size of each buffer
+     * @param capacity Maximum number of idle buffers kept by the pool
+     * @param direct Whether the buffers are allocated outside the heap or not
+     */
+    public BufferPool(int bufferSize, int capacity, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.direct = direct;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new one if there are no idle buffers
+     *
+     * @return Buffer ready to be written
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller afterwards
+     *
+     * @param buffer Buffer previously acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= capacity)
+            buffers.offer(buffer);
+        else
+            pooled.decrementAndGet();
+    }
+}
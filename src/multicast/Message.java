@@ -0,0 +1,194 @@
+package multicast;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Immutable message exchanged on the multicast channels
+ *
+ * Received messages keep their body in the pooled buffer the datagram was received into, so the body is only valid
+ * until the message is released.
+ *
+ * GETCHUNK messages may advertise the port where the initiator accepts chunks over TCP, and CHUNK messages carrying
+ * that same port are only notices that the chunk was sent over TCP. Both remain valid messages for peers that don't
+ * know about the port, as described on MessageCodec.
+ *
+ * @see MessageCodec
+ * @see BufferPool
+ */
+public class Message {
+    private final MessageType type;
+    private final String version;
+    private final int senderId;
+    private final byte[] fileId;
+    private final int chunkNo, replicationDegree;
+    private final int port;
+    private final InetAddress senderAddress;
+
+    private final ByteBuffer buffer;
+    private final int bodyOffset, bodyLength;
+
+    private final BufferPool pool;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private String fileIdHex;
+
+    /**
+     * Constructor of a message without a body, to be sent
+     *
+     * @param type Type of the message
+     * @param version Protocol version of the sender
+     * @param senderId Id of the sender
+     * @param fileId Id of the file, as 64 hexadecimal characters
+     * @param chunkNo Id of the chunk, ignored for messages without one
+     * @param replicationDegree Desired replication degree, ignored for messages other than PUTCHUNK and KEEPCHUNK
+     */
+    public Message(MessageType type, String version, int senderId, String fileId, int chunkNo, int replicationDegree) {
+        this(type, version, senderId, fileId, chunkNo, replicationDegree, null);
+    }
+
+    /**
+     * Constructor of a message with a body, to be sent
+     *
+     * @param type Type of the message
+     * @param version Protocol version of the sender
+     * @param senderId Id of the sender
+     * @param fileId Id of the file, as 64 hexadecimal characters
+     * @param chunkNo Id of the chunk, ignored for messages without one
+     * @param replicationDegree Desired replication degree, ignored for messages other than PUTCHUNK and KEEPCHUNK
+     * @param body Contents of the body, or null in case there is no body in the message
+     */
+    public Message(MessageType type, String version, int senderId, String fileId, int chunkNo, int replicationDegree,
+                   byte[] body) {
+        this(type, version, senderId, MessageCodec.fromHex(fileId), chunkNo, replicationDegree, -1, null,
+                body == null ? null : ByteBuffer.wrap(body), 0, body == null ? -1 : body.length, null);
+        this.fileIdHex = fileId;
+    }
+
+    /**
+     * Constructor used by the codec for received messages
+     *
+     * @param port Port advertised for unicast chunk transfers, or -1 if none
+     * @param senderAddress Address the message was received from, or null if unknown
+     * @param buffer Buffer holding the message
+     * @param bodyOffset Index of the body in the buffer
+     * @param bodyLength Length of the body, or -1 in case there is no body in the message
+     * @param pool Pool the buffer is returned to once the message is released, or null if it isn't pooled
+     */
+    Message(MessageType type, String version, int senderId, byte[] fileId, int chunkNo, int replicationDegree,
+            int port, InetAddress senderAddress, ByteBuffer buffer, int bodyOffset, int bodyLength, BufferPool pool) {
+        this.type = type;
+        this.version = version;
+        this.senderId = senderId;
+        this.fileId = fileId;
+        this.chunkNo = chunkNo;
+        this.replicationDegree = replicationDegree;
+        this.port = port;
+        this.senderAddress = senderAddress;
+        this.buffer = buffer;
+        this.bodyOffset = bodyOffset;
+        this.bodyLength = bodyLength;
+        this.pool = pool;
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Retrieves the id of the file, converting it to its hexadecimal form on the first call
+     *
+     * @return Id of the file, as 64 hexadecimal characters
+     */
+    public String getFileId() {
+        if (fileIdHex == null)
+            fileIdHex = MessageCodec.toHex(fileId);
+
+        return fileIdHex;
+    }
+
+    public int getChunkNo() {
+        return chunkNo;
+    }
+
+    public int getReplicationDegree() {
+        return replicationDegree;
+    }
+
+    /**
+     * @return Port advertised for unicast chunk transfers, or -1 if none
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return Address the message was received from, or null for messages created locally
+     */
+    public InetAddress getSenderAddress() {
+        return senderAddress;
+    }
+
+    /**
+     * Creates a copy of this message advertising a port for unicast chunk transfers
+     *
+     * @param port Port advertised on the message
+     *
+     * @return Copy of the message, to be sent
+     */
+    public Message withPort(int port) {
+        Message message = new Message(type, version, senderId, fileId, chunkNo, replicationDegree, port, null,
+                buffer, bodyOffset, bodyLength, null);
+        message.fileIdHex = fileIdHex;
+        return message;
+    }
+
+    /**
+     * @return Whether the message has a body or not
+     */
+    public boolean hasBody() {
+        return bodyLength >= 0;
+    }
+
+    /**
+     * Retrieves the body of the message, valid until the message is released
+     *
+     * @return Read-only view over the body, or null in case there is no body in the message
+     */
+    public ByteBuffer getBody() {
+        if (!hasBody())
+            return null;
+
+        ByteBuffer body = buffer.asReadOnlyBuffer();
+        body.limit(bodyOffset + bodyLength).position(bodyOffset);
+        return body.slice();
+    }
+
+    byte[] getFileIdBytes() {
+        return fileId;
+    }
+
+    /**
+     * Returns the buffer holding this message to its pool. Releasing a message more than once has no effect
+     */
+    public void release() {
+        if (pool != null && released.compareAndSet(false, true))
+            pool.release(buffer);
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + version + " " + senderId + " " + getFileId() +
+                (type.hasChunkNo() ? " " + chunkNo : "") +
+                (type.hasReplicationDegree() ? " " + replicationDegree : "");
+    }
+}
@@ -0,0 +1,270 @@
+package multicast;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codec translating between messages and their wire format, compatible with the protocol versions 1.0, 1.1, 2.0 and
+ * 2.1
+ *
+ * The wire format is a single line header followed by an empty line and the body:
+ * {@code <MessageType> <Version> <SenderId> <FileId> <ChunkNo> <ReplicationDeg> CRLF CRLF <Body>}
+ *
+ * The port used for unicast chunk transfers is carried so that peers parsing the header by splitting it on spaces,
+ * as the original implementation does, still accept the message. GETCHUNK messages carry it as their body, which
+ * those peers ignore, so it isn't echoed on the header of their CHUNK replies. CHUNK notices carry it as an extra
+ * trailing field of the header, after the chunk number.
+ *
+ * Both directions work directly on the bytes of the message, without any intermediate Strings.
+ */
+public class MessageCodec {
+    private static final byte CR = 0x0D;
+    private static final byte LF = 0x0A;
+    private static final byte SPACE = 0x20;
+
+    private static final int FILE_ID_SIZE = 32;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] KNOWN_VERSIONS = {"1.0", "1.1", "2.0", "2.1"};
+
+    /**
+     * Encodes a message into a buffer
+     *
+     * @param message Message to be encoded
+     * @param buffer Buffer the message is written to, from its current position
+     */
+    public static void encode(Message message, ByteBuffer buffer) {
+        MessageType type = message.getType();
+
+        buffer.put(type.getNameBytes()).put(SPACE);
+
+        String version = message.getVersion();
+        for (int i = 0; i < version.length(); i++)
+            buffer.put((byte) version.charAt(i));
+        buffer.put(SPACE);
+
+        putInt(buffer, message.getSenderId());
+        buffer.put(SPACE);
+
+        for (byte b : message.getFileIdBytes())
+            buffer.put(HEX_DIGITS[(b >> 4) & 0xF]).put(HEX_DIGITS[b & 0xF]);
+
+        if (type.hasChunkNo()) {
+            buffer.put(SPACE);
+            putInt(buffer, message.getChunkNo());
+        }
+
+        if (type.hasReplicationDegree()) {
+            buffer.put(SPACE);
+            putInt(buffer, message.getReplicationDegree());
+        }
+
+        if (type == MessageType.CHUNK && message.getPort() >= 0) {
+            buffer.put(SPACE);
+            putInt(buffer, message.getPort());
+        }
+
+        buffer.put(CR).put(LF).put(CR).put(LF);
+
+        if (type == MessageType.GETCHUNK && message.getPort() >= 0) {
+            putInt(buffer, message.getPort());
+            return;
+        }
+
+        ByteBuffer body = message.getBody();
+        if (body != null)
+            buffer.put(body);
+    }
+
+    /**
+     * Decodes a message held between the position and the limit of a buffer
+     *
+     * Header fields may be separated by more than one space, and header lines after the first are ignored. The port of
+     * GETCHUNK messages is read from their body, and the port of CHUNK notices from their trailing header field. The
+     * body of the decoded message is a view over the buffer.
+     *
+     * @param buffer Buffer holding the message
+     * @param pool Pool the buffer is returned to once the message is released, or null if it isn't pooled
+     *
+     * @return Decoded message
+     *
+     * @throws IllegalArgumentException on malformed messages
+     */
+    public static Message decode(ByteBuffer buffer, BufferPool pool) {
+        return decode(buffer, pool, null);
+    }
+
+    /**
+     * Decodes a message received from a given address
+     *
+     * @param buffer Buffer holding the message
+     * @param pool Pool the buffer is returned to once the message is released, or null if it isn't pooled
+     * @param senderAddress Address the message was received from
+     *
+     * @return Decoded message
+     *
+     * @throws IllegalArgumentException on malformed messages
+     */
+    public static Message decode(ByteBuffer buffer, BufferPool pool, InetAddress senderAddress) {
+        int start = buffer.position(), end = buffer.limit();
+
+        int headerEnd = end, bodyOffset = -1;
+        for (int i = start; i < end - 3; i++) {
+            if (buffer.get(i) == CR && buffer.get(i+1) == LF && buffer.get(i+2) == CR && buffer.get(i+3) == LF) {
+                headerEnd = i;
+                bodyOffset = i + 4;
+                break;
+            }
+        }
+
+        MessageType type = null;
+        String version = null;
+        byte[] fileId = null;
+        int senderId = 0, chunkNo = 0, replicationDegree = 0, port = -1;
+
+        int field = 0, i = start;
+        while (i < headerEnd) {
+            byte b = buffer.get(i);
+            if (b == CR || b == LF) break;
+            if (b == SPACE) { i++; continue; }
+
+            int tokenStart = i;
+            while (i < headerEnd && (b = buffer.get(i)) != SPACE && b != CR && b != LF) i++;
+
+            switch (field++) {
+                case 0:
+                    type = MessageType.match(buffer, tokenStart, i);
+                    if (type == null) throw new IllegalArgumentException("Unknown message type");
+                    break;
+                case 1:
+                    version = parseVersion(buffer, tokenStart, i);
+                    break;
+                case 2:
+                    senderId = parseInt(buffer, tokenStart, i);
+                    break;
+                case 3:
+                    fileId = parseHex(buffer, tokenStart, i);
+                    break;
+                case 4:
+                    chunkNo = parseInt(buffer, tokenStart, i);
+                    break;
+                case 5:
+                    if (type.hasReplicationDegree())
+                        replicationDegree = parseInt(buffer, tokenStart, i);
+                    else if (type == MessageType.CHUNK)
+                        port = parseInt(buffer, tokenStart, i);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (type == null || field < type.getFieldCount())
+            throw new IllegalArgumentException("Missing header fields");
+
+        if (type == MessageType.GETCHUNK && bodyOffset >= 0 && end > bodyOffset)
+            port = parseInt(buffer, bodyOffset, end);
+
+        return new Message(type, version, senderId, fileId, chunkNo, replicationDegree, port, senderAddress, buffer,
+                bodyOffset, bodyOffset < 0 ? -1 : end - bodyOffset, pool);
+    }
+
+    /**
+     * Converts a file id to its binary form
+     *
+     * @param fileId Id of the file, as 64 hexadecimal characters
+     *
+     * @return Id of the file, as 32 bytes
+     */
+    public static byte[] fromHex(String fileId) {
+        byte[] bytes = new byte[FILE_ID_SIZE];
+        for (int i = 0; i < FILE_ID_SIZE; i++) {
+            bytes[i] = (byte) (Character.digit(fileId.charAt(2 * i), 16) << 4 |
+                    Character.digit(fileId.charAt(2 * i + 1), 16));
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Converts a file id to its hexadecimal form
+     *
+     * @param fileId Id of the file, as 32 bytes
+     *
+     * @return Id of the file, as 64 hexadecimal characters
+     */
+    public static String toHex(byte[] fileId) {
+        byte[] hex = new byte[2 * fileId.length];
+        for (int i = 0; i < fileId.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(fileId[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[fileId[i] & 0xF];
+        }
+
+        return new String(hex, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes the decimal digits of a non negative integer
+     */
+    private static void putInt(ByteBuffer buffer, int value) {
+        int divisor = 1;
+        while (value / divisor >= 10) divisor *= 10;
+
+        for (; divisor > 0; divisor /= 10)
+            buffer.put((byte) ('0' + value / divisor % 10));
+    }
+
+    /**
+     * Parses the decimal digits of a non negative integer
+     */
+    private static int parseInt(ByteBuffer buffer, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) throw new IllegalArgumentException("Malformed number");
+
+            if (value > (Integer.MAX_VALUE - digit) / 10) throw new IllegalArgumentException("Malformed number");
+
+            value = value * 10 + digit;
+        }
+
+        return value;
+    }
+
+    /**
+     * Parses the 64 hexadecimal characters of a file id
+     */
+    private static byte[] parseHex(ByteBuffer buffer, int start, int end) {
+        if (end - start != 2 * FILE_ID_SIZE) throw new IllegalArgumentException("Malformed file id");
+
+        byte[] fileId = new byte[FILE_ID_SIZE];
+        for (int i = 0; i < FILE_ID_SIZE; i++) {
+            int high = Character.digit(buffer.get(start + 2 * i), 16);
+            int low = Character.digit(buffer.get(start + 2 * i + 1), 16);
+            if (high < 0 || low < 0) throw new IllegalArgumentException("Malformed file id");
+
+            fileId[i] = (byte) (high << 4 | low);
+        }
+
+        return fileId;
+    }
+
+    /**
+     * Parses the protocol version, reusing the known versions instead of creating a new String
+     */
+    private static String parseVersion(ByteBuffer buffer, int start, int end) {
+        for (String version : KNOWN_VERSIONS) {
+            if (version.length() != end - start) continue;
+
+            int i = 0;
+            while (i < version.length() && version.charAt(i) == buffer.get(start + i)) i++;
+
+            if (i == version.length())
+                return version;
+        }
+
+        byte[] version = new byte[end - start];
+        buffer.duplicate().position(start).get(version);
+        return new String(version, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,77 @@
+package multicast;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Types of the messages exchanged on the multicast channels, along with the header fields each of them carries
+ *
+ * KEEPCHUNK asks the peers to store a chunk of a new version of a file with the contents of a chunk of its previous
+ * version, which its body refers to as [fileId][chunkNo], the binary file id followed by the chunk number.
+ */
+public enum MessageType {
+    PUTCHUNK(6),
+    STORED(5),
+    GETCHUNK(5),
+    CHUNK(5),
+    DELETE(4),
+    REMOVED(5),
+    KEEPCHUNK(6);
+
+    private static final MessageType[] VALUES = values();
+
+    private final byte[] nameBytes = name().getBytes(StandardCharsets.US_ASCII);
+    private final int fieldCount;
+
+    /**
+     * @param fieldCount Number of header fields of this message type, including the type itself
+     */
+    MessageType(int fieldCount) {
+        this.fieldCount = fieldCount;
+    }
+
+    /**
+     * Identifies the message type written on a section of a buffer, without creating a String
+     *
+     * @param buffer Buffer holding the message
+     * @param start Index of the first character of the type
+     * @param end Index after the last character of the type
+     *
+     * @return Message type, or null if it isn't a known type
+     */
+    static MessageType match(ByteBuffer buffer, int start, int end) {
+        for (MessageType type : VALUES) {
+            if (type.nameBytes.length != end - start) continue;
+
+            int i = 0;
+            while (i < type.nameBytes.length && type.nameBytes[i] == buffer.get(start + i)) i++;
+
+            if (i == type.nameBytes.length)
+                return type;
+        }
+
+        return null;
+    }
+
+    byte[] getNameBytes() {
+        return nameBytes;
+    }
+
+    int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return Whether messages of this type carry a chunk number or not
+     */
+    boolean hasChunkNo() {
+        return fieldCount > 4;
+    }
+
+    /**
+     * @return Whether messages of this type carry a replication degree or not
+     */
+    boolean hasReplicationDegree() {
+        return fieldCount > 5;
+    }
+}
@@ -1,119 +1,336 @@
 package multicast;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.AbstractMap;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Class implementing an interface for a multicast channel, wrapping the details of the message format.
+ *
+ * Datagrams are received into pooled buffers, which are handed to the workers as part of the received message.
+ *
+ * A channel may be paced, in which case every worker's messages go through a shared bounded send queue, drained by a
+ * single thread at the rate allowed by a token bucket. This keeps bursts of chunks from overflowing the receive
+ * buffers of the other peers, while workers block once the queue is full, unless they only offer their messages. The
+ * number of messages sent and retransmitted is kept, so the rate can be tuned to the network.
+ *
+ * @see MessageCodec
+ * @see BufferPool
+ * @see TokenBucket
  */
 public class MulticastInterface {
-    private InetAddress group;
-    private int port;
-    private MulticastSocket s;
+    private static final int BUFFER_SIZE = 65000;
+    private static final int POOL_CAPACITY = Integer.getInteger("peer.bufferPool", 64);
+    private static final boolean DIRECT_BUFFERS = Boolean.getBoolean("peer.directBuffers");
+    private static final int SEND_BUFFER = Integer.getInteger("peer.sendBuffer", 0);
+    private static final int RECEIVE_BUFFER = Integer.getInteger("peer.receiveBuffer", 4 * 1024 * 1024);
+    private static final int SEND_QUEUE = Integer.getInteger("peer.sendQueue", 64);
+    private static final long BURST_TIME = 50;
 
-    private static final char CR = 0x0D;
-    private static final char LF = 0x0A;
+    private final InetSocketAddress group;
+    private final DatagramChannel channel;
+
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, POOL_CAPACITY, DIRECT_BUFFERS);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final BlockingQueue<QueuedMessage> sendQueue = new ArrayBlockingQueue<>(Math.max(1, SEND_QUEUE));
+    private final TokenBucket tokenBucket;
+    private final Thread sender;
+
+    private final LongAdder sentMessages = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
 
     /**
      * Constructor creating an interface for a multicast channel given its address
      *
      * @param address IPV4 address of the multicast channel
      * @param port Port of the multicast channel
+     *
+     * @throws IOException on failure to join the multicast channel
+     */
+    public MulticastInterface(String address, int port) throws IOException {
+        this(address, port, 0);
+    }
+
+    /**
+     * Constructor creating an interface for a paced multicast channel given its address
+     *
+     * The token bucket holds up to 50 ms worth of the rate, and at least one full datagram.
+     *
+     * @param address IPV4 address of the multicast channel
+     * @param port Port of the multicast channel
+     * @param rate Maximum rate of the messages sent, in bytes per second, or 0 to send them right away
+     *
+     * @throws IOException on failure to join the multicast channel
      */
-    public MulticastInterface(String address, int port) {
+    public MulticastInterface(String address, int port, long rate) throws IOException {
+        this.tokenBucket = rate > 0 ? new TokenBucket(rate, Math.max(BUFFER_SIZE, rate * BURST_TIME / 1000)) : null;
+        this.group = new InetSocketAddress(InetAddress.getByName(address), port);
+
+        NetworkInterface networkInterface = findNetworkInterface();
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
         try {
-            this.group = InetAddress.getByName(address);
-            this.port = port;
+            this.channel.setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                    .bind(new InetSocketAddress(port))
+                    .setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            this.channel.join(group.getAddress(), networkInterface);
 
-            this.s = new MulticastSocket(port);
-            this.s.joinGroup(group);
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (SEND_BUFFER > 0)
+                this.channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+            if (RECEIVE_BUFFER > 0)
+                this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+
+        if (tokenBucket != null) {
+            this.sender = new Thread(this::drainQueue, "multicast-sender-" + port);
+            this.sender.setDaemon(true);
+            this.sender.start();
+        } else {
+            this.sender = null;
         }
     }
 
     /**
-     * Sends a message with a single line header through the multicast channel
+     * Sends a message through the multicast channel
+     *
+     * On a paced channel the message is queued instead, to be sent once the rate allows it, blocking while the queue
+     * is full.
+     *
+     * @param message Message to be sent
      *
-     * @param header Header fields to be sent
+     * @return Future completed once the message is sent, or failed if it is discarded before being sent
      */
-    public synchronized void sendMessage(String[] header) {
-        byte[] msg = (String.join(" ", header) + CR + LF + CR + LF).getBytes();
+    public CompletableFuture<Void> sendMessage(Message message) {
+        if (tokenBucket == null) {
+            CompletableFuture<Void> sent = new CompletableFuture<>();
+            send(message, sent);
+            return sent;
+        }
 
+        QueuedMessage queued = new QueuedMessage(message);
         try {
-            s.send(new DatagramPacket(msg, msg.length, group, port));
-        } catch (IOException e) {
-            e.printStackTrace();
+            sendQueue.put(queued);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued.sent.completeExceptionally(e);
         }
+
+        return queued.sent;
     }
 
     /**
-     * Sends a message with a single line header and a body through the multicast channel
+     * Sends a message through the multicast channel without blocking
+     *
+     * On a paced channel the message is only queued if the queue has room for it.
+     *
+     * @param message Message to be sent
+     *
+     * @return Future completed once the message is sent, or failed if it is discarded before being sent, or null if
+     *         the queue is full
+     */
+    public CompletableFuture<Void> offerMessage(Message message) {
+        if (tokenBucket == null)
+            return sendMessage(message);
+
+        QueuedMessage queued = new QueuedMessage(message);
+        return sendQueue.offer(queued) ? queued.sent : null;
+    }
+
+    /**
+     * Sends a message again through the multicast channel, after getting no answer to it
+     *
+     * @param message Message to be sent
      *
-     * @param header Header fields to be sent
-     * @param body Body contents to be sent
+     * @return Future completed once the message is sent, or failed if it is discarded before being sent
      */
-    public synchronized void sendMessage(String[] header, byte[] body) {
-        byte[] headerMsg = (String.join(" ", header) + CR + LF + CR + LF).getBytes();
+    public CompletableFuture<Void> resendMessage(Message message) {
+        retransmissions.increment();
+        return sendMessage(message);
+    }
 
-        byte[] msg = new byte[headerMsg.length + body.length];
-        System.arraycopy(headerMsg, 0, msg,0, headerMsg.length);
-        System.arraycopy(body, 0, msg, headerMsg.length, body.length);
+    /**
+     * Encodes and sends a message right away
+     *
+     * @param message Message to be sent
+     * @param sent Future completed once the message is sent, or failed if it can't be sent
+     */
+    private synchronized void send(Message message, CompletableFuture<Void> sent) {
+        sendBuffer.clear();
+        MessageCodec.encode(message, sendBuffer);
+        sendBuffer.flip();
 
         try {
-            s.send(new DatagramPacket(msg, msg.length, group, port));
+            int bytes = sendBuffer.remaining();
+            if (tokenBucket != null)
+                tokenBucket.acquire(bytes);
+
+            channel.send(sendBuffer, group);
+
+            sentMessages.increment();
+            sentBytes.add(bytes);
+            sent.complete(null);
+        } catch (ClosedChannelException e) {
+            // Messages still being sent once the peer is stopped are dropped
+            sent.completeExceptionally(e);
         } catch (IOException e) {
             e.printStackTrace();
+            sent.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sent.completeExceptionally(e);
         }
     }
 
     /**
-     * Receives a message from the multicast channel
-     *
-     * @return Pair containing the header fields and the body. The body is null in case there is no body in the message
+     * Sends the queued messages of a paced channel, in order, endlessly
      */
-    public AbstractMap.SimpleImmutableEntry<String[], byte[]> receiveMessage() {
-        byte[] buf = new byte[65000];
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+    private void drainQueue() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                QueuedMessage queued = sendQueue.take();
+                send(queued.message, queued.sent);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Closes the channel, discarding the messages still queued to be sent
+     */
+    public void close() {
+        if (sender != null) {
+            sender.interrupt();
+
+            List<QueuedMessage> discarded = new ArrayList<>();
+            sendQueue.drainTo(discarded);
+            for (QueuedMessage queued : discarded)
+                queued.sent.completeExceptionally(new ClosedChannelException());
+        }
+
         try {
-            s.receive(packet);
+            channel.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * @return Number of messages sent through the channel
+     */
+    public long getSentMessages() {
+        return sentMessages.sum();
+    }
+
+    /**
+     * @return Number of bytes sent through the channel
+     */
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
 
-        return decodeMessage(packet.getData(), packet.getLength());
+    /**
+     * @return Number of messages sent again for getting no answer, each one a message or its answer being lost
+     */
+    public long getRetransmissions() {
+        return retransmissions.sum();
     }
 
     /**
-     * Helper method for decoding the data of a message
+     * @return Number of messages waiting to be sent on a paced channel
+     */
+    public int getQueuedMessages() {
+        return sendQueue.size();
+    }
+
+    /**
+     * Receives a message from the multicast channel into a pooled buffer
+     *
+     * This method is meant to be called by a single thread. The returned message must be released once processed.
+     *
+     * @return Received message
      *
-     * @param data raw data of the received data packet
-     * @param length length of the raw data
-     * @return Pair containing the header fields and the body. The body is null in case there is no body in the message
+     * @throws IOException on failure to receive from the channel
+     * @throws IllegalArgumentException on malformed messages
      */
-    private AbstractMap.SimpleImmutableEntry<String[], byte[]> decodeMessage(byte[] data, int length) {
-        for (int i = 0; i < length - 4; i++) {
-            if (data[i] == CR && data[i+1] == LF && data[i+2] == CR && data[i+3] == LF) {
-                byte[] header = new byte[i];
-                byte[] body = new byte[length - i - 4];
-
-                System.arraycopy(data, 0, header, 0, header.length);
-                System.arraycopy(data, i + 4, body, 0, body.length);
-
-                return new AbstractMap.SimpleImmutableEntry<>(
-                        new String(header).split(" +"),
-                        body
-                );
-            }
+    public Message receiveMessage() throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+            buffer.flip();
+
+            return MessageCodec.decode(buffer, bufferPool, sender.getAddress());
+        } catch (IOException | RuntimeException e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+    }
+
+    /**
+     * Selects the network interface used to join the multicast group
+     *
+     * The interface can be chosen by name with the peer.networkInterface property. Otherwise, the first active
+     * multicast capable interface is used, preferring non loopback interfaces.
+     *
+     * @return Network interface used for multicast
+     *
+     * @throws SocketException on failure to list the network interfaces, or if there is no such interface
+     */
+    private static NetworkInterface findNetworkInterface() throws SocketException {
+        String name = System.getProperty("peer.networkInterface");
+        if (name != null) {
+            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+            if (networkInterface == null)
+                throw new SocketException("No network interface named " + name);
 
+            return networkInterface;
         }
 
-        return new AbstractMap.SimpleImmutableEntry<>(
-                new String(data, 0, length - 4).split(" +"),
-                null
-        );
+        NetworkInterface loopback = null;
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || !networkInterface.supportsMulticast()) continue;
+
+            if (!networkInterface.isLoopback())
+                return networkInterface;
+            else if (loopback == null)
+                loopback = networkInterface;
+        }
+
+        if (loopback == null)
+            loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        if (loopback == null)
+            throw new SocketException("No multicast capable network interface");
+
+        return loopback;
+    }
+
+    /**
+     * Message waiting to be sent on a paced channel, along with the future completed once it is sent
+     */
+    private static class QueuedMessage {
+        private final Message message;
+        private final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        private QueuedMessage(Message message) {
+            this.message = message;
+        }
     }
 }
@@ -1,6 +1,11 @@
 package multicast;
 
-import peer.Peer;
+import peer.Metrics;
+import peer.PeerContext;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Thread associtated with a multicast channel, responsible for receiving its messages and dispatching them to a worker
@@ -8,24 +13,46 @@ import peer.Peer;
  * @see MulticastWorker
  */
 public class MulticastThread extends Thread {
-    private MulticastInterface multicastInterface;
+    private final PeerContext context;
+    private final Metrics.Channel channel;
+    private final MulticastInterface multicastInterface;
 
     /**
      * Constructor creating a thread to dispatch messages to workers
      *
+     * @param context Context of the peer the messages are processed for
+     * @param channel Channel this thread is responsible for, as reported on the peer's metrics
      * @param multicastInterface Interface of the multicast channel this thread is responsible for
      */
-    public MulticastThread(MulticastInterface multicastInterface) {
+    public MulticastThread(PeerContext context, Metrics.Channel channel, MulticastInterface multicastInterface) {
+        this.context = context;
+        this.channel = channel;
         this.multicastInterface = multicastInterface;
     }
 
     /**
-     * Implements the Thread behavior, endlessly receiving messages and dispatching them to a worker
+     * Implements the Thread behavior, receiving messages and dispatching them to a worker until the channel is closed
      */
     @Override
     public void run() {
         while (!Thread.currentThread().isInterrupted()) {
-            Peer.getMulticastThreadPool().execute(new MulticastWorker(multicastInterface.receiveMessage()));
+            try {
+                Message message = multicastInterface.receiveMessage();
+                context.getMetrics().messageReceived(channel, message.getType());
+                try {
+                    context.getMulticastThreadPool().execute(new MulticastWorker(context, message));
+                } catch (RejectedExecutionException e) {
+                    message.release();
+                    return;
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (IllegalArgumentException e) {
+                context.getMetrics().decodeFailed();
+                System.err.println("Message Discarded: " + e.getMessage());
+            }
         }
     }
 }
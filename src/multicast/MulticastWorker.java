@@ -1,121 +1,265 @@
 package multicast;
 
-import peer.Peer;
+import peer.PeerContext;
+import storage.ChunkIndex;
 import storage.ChunkInfo;
 import storage.RestoreManager;
 import storage.StorageManager;
 
 import java.io.IOException;
-import java.util.AbstractMap;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Worker responsible for processing a message received in one of the multicast channels
  */
 public class MulticastWorker implements Runnable {
-    private static final String ENH_VERSION = "2.0";
-    private static final ConcurrentHashMap<String, Object> flagMap = new ConcurrentHashMap<>();
+    private static final int KEEP_BODY_SIZE = 32 + Integer.BYTES;
 
     private final int waitTime = new Random().nextInt(401);
 
-    private String[] header;
-    private byte[] body;
+    private final PeerContext context;
+    private final StorageManager storageManager;
+    private final RestoreManager restoreManager;
+    private final ChunkIndex<Boolean> flagMap;
+
+    private final Message message;
+    private boolean deferred = false;
 
     /**
-     * Constructor of a worker to process a message
+     * Constructor of a worker to process a message. The message is released once the worker is done with it
      *
-     * @param msg Message contents (Pair containing the header fields and the body)
+     * @param context Context of the peer the message is processed for
+     * @param message Received message
      */
-    MulticastWorker(AbstractMap.SimpleImmutableEntry<String[], byte[]> msg) {
-        this.header = msg.getKey();
-        this.body = msg.getValue();
-
-        //System.out.println("->" + Arrays.toString(header));
+    MulticastWorker(PeerContext context, Message message) {
+        this.context = context;
+        this.storageManager = context.getStorageManager();
+        this.restoreManager = context.getRestoreManager();
+        this.flagMap = context.getRemovedChunks();
+        this.message = message;
     }
 
     /**
      * Implements the Worker behavior, identifying the message type and processing it accordingly
+     *
+     * Responses that must wait for a random delay are scheduled on the peer's scheduler instead of holding the thread,
+     * and processed back on the multicast thread pool.
      */
     @Override
     public void run() {
         try {
-            int chunkNo = 0;
-            if (header.length > 4)
-                chunkNo = Integer.parseInt(header[4]);
-
-            switch(header[0]) {
-                case "PUTCHUNK":
-                    flagMap.remove(header[3] + chunkNo);
-
-                    if (header[2].equals(Peer.getId())) break;
-
-                    int replicationDegree = Integer.parseInt(header[5]);
-                    if (Peer.getProtocolVersion().equals(ENH_VERSION)) {
-                        Thread.sleep(waitTime);
-
-                        if (StorageManager.getChunkReplication(header[3], chunkNo) < replicationDegree &&
-                                StorageManager.storeChunk(header[3], chunkNo, replicationDegree, body)) {
-                            header[0] = "STORED";
-                            header[1] = Peer.getProtocolVersion();
-                            header[2] = Peer.getId();
-                            Peer.mc.sendMessage(header);
-                        }
+            String fileId = message.getFileId();
+            int chunkNo = message.getChunkNo();
+
+            switch (message.getType()) {
+                case PUTCHUNK:
+                    flagMap.remove(fileId, chunkNo);
+
+                    if (message.getSenderId() == context.getId()) break;
+
+                    int replicationDegree = message.getReplicationDegree();
+                    if (context.isEnhanced()) {
+                        delay(() -> {
+                            if (storageManager.getChunkReplication(fileId, chunkNo) < replicationDegree &&
+                                    storageManager.storeChunk(fileId, chunkNo, replicationDegree, message.getBody())) {
+                                context.mc.sendMessage(new Message(MessageType.STORED, context.getProtocolVersion(),
+                                        context.getId(), fileId, chunkNo, 0));
+                            }
+                        });
+                    }
+                    else if (storageManager.storeChunk(fileId, chunkNo, replicationDegree, message.getBody())) {
+                        delay(() -> context.mc.sendMessage(new Message(MessageType.STORED, context.getProtocolVersion(),
+                                context.getId(), fileId, chunkNo, 0)));
+                    }
+
+                    break;
+                case KEEPCHUNK:
+                    if (message.getSenderId() == context.getId()) break;
+
+                    ByteBuffer previous = message.getBody();
+                    if (previous == null || previous.remaining() != KEEP_BODY_SIZE) {
+                        context.getMetrics().messageDiscarded();
+                        System.err.println("Message Discarded: " + message);
+                        break;
                     }
-                    else if (StorageManager.storeChunk(header[3], chunkNo, replicationDegree, body)) {
-                        Thread.sleep(waitTime);
 
-                        header[0] = "STORED";
-                        header[1] = Peer.getProtocolVersion();
-                        header[2] = Peer.getId();
-                        Peer.mc.sendMessage(header);
+                    byte[] previousId = new byte[KEEP_BODY_SIZE - Integer.BYTES];
+                    previous.get(previousId);
+                    String previousFileId = MessageCodec.toHex(previousId);
+                    int previousChunkNo = previous.getInt();
+
+                    int keptDegree = message.getReplicationDegree();
+                    if (context.isEnhanced()) {
+                        delay(() -> {
+                            if (storageManager.getChunkReplication(fileId, chunkNo) < keptDegree &&
+                                    storageManager.keepChunk(fileId, chunkNo, keptDegree, previousFileId,
+                                            previousChunkNo)) {
+                                context.mc.sendMessage(new Message(MessageType.STORED, context.getProtocolVersion(),
+                                        context.getId(), fileId, chunkNo, 0));
+                            }
+                        });
+                    }
+                    else if (storageManager.keepChunk(fileId, chunkNo, keptDegree, previousFileId, previousChunkNo)) {
+                        delay(() -> context.mc.sendMessage(new Message(MessageType.STORED, context.getProtocolVersion(),
+                                context.getId(), fileId, chunkNo, 0)));
                     }
 
                     break;
-                case "STORED":
-                    StorageManager.signalStoreChunk(header[3], chunkNo);
+                case STORED:
+                    storageManager.signalStoreChunk(fileId, chunkNo);
                     break;
-                case "GETCHUNK":
-                    if (StorageManager.hasChunk(header[3], chunkNo)) {
-                        RestoreManager.markChunk(header[3], chunkNo);
-
-                        Thread.sleep(waitTime);
-
-                        if (RestoreManager.checkAndUnMarkChunk(header[3], chunkNo)) {
-                            header[0] = "CHUNK";
-                            header[1] = Peer.getProtocolVersion();
-                            header[2] = Peer.getId();
-                            Peer.mdr.sendMessage(header, StorageManager.getChunk(header[3], chunkNo));
-                        }
+                case GETCHUNK:
+                    if (storageManager.hasChunk(fileId, chunkNo)) {
+                        restoreManager.markChunk(fileId, chunkNo);
+
+                        InetAddress address = message.getSenderAddress();
+                        int port = message.getPort();
+                        delay(() -> {
+                            if (restoreManager.checkAndUnMarkChunk(fileId, chunkNo)) {
+                                if (context.isEnhanced() && port >= 0 && address != null)
+                                    sendChunk(fileId, chunkNo, address, port);
+                                else
+                                    sendChunk(fileId, chunkNo);
+                            }
+                        });
                     }
                     break;
-                case "DELETE":
-                    StorageManager.deleteChunks(header[3]);
-                case "CHUNK":
-                    RestoreManager.unMarkChunk(header[3], chunkNo);
-                    RestoreManager.putChunk(header[3], chunkNo, body);
+                case DELETE:
+                    storageManager.deleteChunks(fileId);
+                    break;
+                case CHUNK:
+                    restoreManager.unMarkChunk(fileId, chunkNo);
+
+                    // Chunks sent over TCP only have a notice on the MDR channel
+                    if (message.getPort() < 0)
+                        restoreManager.putChunk(fileId, chunkNo, message.getBody());
                     break;
-                case "REMOVED":
-                    ChunkInfo chunkInfo = StorageManager.signalRemoveChunk(header[3], chunkNo);
+                case REMOVED:
+                    ChunkInfo chunkInfo = storageManager.signalRemoveChunk(fileId, chunkNo);
 
                     if (chunkInfo != null) {
-                        flagMap.putIfAbsent(header[3] + chunkNo, new Object());
-
-                        Thread.sleep(waitTime);
-
-                        if (flagMap.remove(header[3] + chunkNo) != null) {
-                            Peer.mdb.sendMessage(new String[]{"PUTCHUNK", Peer.getProtocolVersion(), Peer.getId(),
-                                            header[3], String.valueOf(chunkNo),
-                                            String.valueOf(chunkInfo.getReplicationDegree())
-                                    },
-                                    chunkInfo.getChunk()
-                            );
-                        }
+                        flagMap.putIfAbsent(fileId, chunkNo, Boolean.TRUE);
+
+                        delay(() -> {
+                            if (flagMap.remove(fileId, chunkNo) != null) {
+                                sendBackup(new Message(MessageType.PUTCHUNK, context.getProtocolVersion(),
+                                        context.getId(), fileId, chunkNo, chunkInfo.getReplicationDegree(),
+                                        storageManager.getChunk(fileId, chunkNo)));
+                            }
+                        });
                     }
                     break;
             }
-        } catch (InterruptedException | IOException e) {
-            System.err.println("Message Discarded: " + String.join("|", header));
+        } catch (IOException e) {
+            context.getMetrics().messageDiscarded();
+            System.err.println("Message Discarded: " + message);
+        } finally {
+            if (!deferred)
+                message.release();
         }
     }
+
+    /**
+     * Sends a chunk over the MDB channel without holding the multicast worker
+     *
+     * If the send queue of the channel is full, the send is handed to the backup thread pool, where it may block.
+     */
+    private void sendBackup(Message message) {
+        if (context.mdb.offerMessage(message) != null)
+            return;
+
+        try {
+            context.getBackupThreadPool().execute(() -> context.mdb.sendMessage(message));
+        } catch (RejectedExecutionException e) {
+            // The peer is being stopped
+        }
+    }
+
+    /**
+     * Sends a stored chunk to the unicast channel of the initiator peer, announcing it on the MDR channel
+     *
+     * The transfer runs on the unicast thread pool, as its connection and writes block, and the chunk is sent over the
+     * MDR channel instead if it fails.
+     */
+    private void sendChunk(String fileId, int chunkNo, InetAddress address, int port) {
+        try {
+            context.getUnicastThreadPool().execute(() -> transferChunk(fileId, chunkNo, address, port));
+        } catch (RejectedExecutionException e) {
+            // The peer is being stopped
+        }
+    }
+
+    private void transferChunk(String fileId, int chunkNo, InetAddress address, int port) {
+        if (UnicastChannel.sendChunk(storageManager, address, port, fileId, chunkNo)) {
+            context.mdr.sendMessage(new Message(MessageType.CHUNK, context.getProtocolVersion(), context.getId(),
+                    fileId, chunkNo, 0).withPort(port));
+            return;
+        }
+
+        try {
+            sendChunk(fileId, chunkNo);
+        } catch (IOException e) {
+            System.err.println("Chunk no longer stored: " + fileId + ":" + chunkNo);
+        }
+    }
+
+    /**
+     * Sends a stored chunk over the MDR channel
+     */
+    private void sendChunk(String fileId, int chunkNo) throws IOException {
+        context.mdr.sendMessage(new Message(MessageType.CHUNK, context.getProtocolVersion(), context.getId(), fileId,
+                chunkNo, 0, storageManager.getChunk(fileId, chunkNo)));
+    }
+
+    /**
+     * Schedules the rest of the processing of the message after this worker's random delay
+     *
+     * The scheduler only hands the continuation to the multicast thread pool, as it may store or read chunks and wait
+     * for their sends. The message is only released once the continuation has run, or right away if the peer is being
+     * stopped.
+     *
+     * @param continuation Processing to be done after the delay
+     */
+    private void delay(Continuation continuation) {
+        try {
+            context.getScheduler().schedule(() -> resume(continuation), waitTime, TimeUnit.MILLISECONDS);
+            deferred = true;
+        } catch (RejectedExecutionException e) {
+            deferred = false;
+        }
+    }
+
+    /**
+     * Runs the rest of the processing of the message on the multicast thread pool, releasing the message afterwards
+     *
+     * @param continuation Processing to be done after the delay
+     */
+    private void resume(Continuation continuation) {
+        try {
+            context.getMulticastThreadPool().execute(() -> {
+                try {
+                    continuation.run();
+                } catch (IOException e) {
+                    context.getMetrics().messageDiscarded();
+                    System.err.println("Message Discarded: " + message);
+                } finally {
+                    message.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            message.release();
+        }
+    }
+
+    /**
+     * Delayed part of the processing of a message
+     */
+    @FunctionalInterface
+    private interface Continuation {
+        void run() throws IOException;
+    }
 }
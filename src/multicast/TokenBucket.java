@@ -0,0 +1,56 @@
+package multicast;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket pacing the bytes sent through a channel
+ *
+ * Tokens are bytes, refilled at a constant rate up to the capacity of the bucket, which bounds the bursts sent at once.
+ * A send larger than the capacity waits for a full bucket and leaves it in debt.
+ *
+ * This class isn't thread-safe, it is meant to be used by the single thread sending through the channel.
+ */
+class TokenBucket {
+    private final double rate;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Constructor creating a full bucket
+     *
+     * @param bytesPerSecond Rate at which the bucket is refilled
+     * @param capacity Maximum number of tokens of the bucket, in bytes
+     */
+    TokenBucket(long bytesPerSecond, long capacity) {
+        this.rate = bytesPerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+    }
+
+    /**
+     * Takes the tokens to send a number of bytes, waiting until there are enough of them
+     *
+     * @param bytes Number of bytes to send
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void acquire(int bytes) throws InterruptedException {
+        double needed = Math.min(bytes, capacity);
+
+        refill();
+        while (tokens < needed) {
+            TimeUnit.NANOSECONDS.sleep(Math.max(1, (long) ((needed - tokens) / rate)));
+            refill();
+        }
+
+        tokens -= bytes;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate);
+        lastRefill = now;
+    }
+}
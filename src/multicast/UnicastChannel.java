@@ -0,0 +1,198 @@
+package multicast;
+
+import peer.Metrics;
+import peer.PeerContext;
+import storage.StorageManager;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * TCP channel through which restored chunks are sent straight to the initiator peer, instead of over the MDR channel
+ *
+ * The initiator advertises the port of its channel on its GETCHUNK messages. The peer answering the request connects
+ * to it and sends the chunk as [fileId][chunkNo][length][body], closing the connection at the end of the body. Its
+ * contents are written straight from the chunk store, and a CHUNK notice without a body is still sent to the MDR
+ * channel so the other peers holding the chunk don't answer as well.
+ *
+ * The initiator accepts and reads every connection on a single thread, with non-blocking sockets. The channel is
+ * closed once the thread is interrupted. The senders connect and write with blocking sockets, so they run on the
+ * unicast thread pool of their peer rather than on its multicast workers.
+ */
+public class UnicastChannel extends Thread {
+    private static final int FILE_ID_SIZE = 64;
+    private static final int HEADER_SIZE = FILE_ID_SIZE + 2 * Integer.BYTES;
+    private static final int MAX_BODY_SIZE = 65000;
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    private final PeerContext context;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+
+    /**
+     * Constructor opening the channel on the given port
+     *
+     * @param context Context of the peer the chunks are restored by
+     * @param port Port the channel listens on, or 0 for any free port
+     *
+     * @throws IOException on failure to open the channel
+     */
+    public UnicastChannel(PeerContext context, int port) throws IOException {
+        super("unicast-channel");
+        setDaemon(true);
+
+        this.context = context;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port));
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * @return Port the channel listens on
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Implements the Thread behavior, accepting connections and reading the chunks sent through them until interrupted
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.isReadable())
+                        read(key);
+                } catch (IOException e) {
+                    System.err.println("Unicast transfer failed: " + e.getMessage());
+                    close(key);
+                }
+            }
+        }
+
+        try {
+            for (SelectionKey key : selector.keys())
+                key.channel().close();
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts a connection, registering it to be read
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(HEADER_SIZE + MAX_BODY_SIZE + 1));
+    }
+
+    /**
+     * Reads the available data of a connection, delivering the chunk once the connection is closed by the sender
+     */
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+
+        int read;
+        while ((read = channel.read(buffer)) > 0) {
+            if (!buffer.hasRemaining())
+                throw new IOException("Chunk too large");
+        }
+
+        if (read < 0) {
+            close(key);
+
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE)
+                throw new IOException("Truncated chunk");
+
+            byte[] fileId = new byte[FILE_ID_SIZE];
+            buffer.get(fileId);
+            int chunkNo = buffer.getInt();
+            int length = buffer.getInt();
+
+            // Transfers cut short by the sender end with a body shorter than announced
+            if (buffer.remaining() != length)
+                throw new IOException("Truncated chunk");
+
+            context.getMetrics().messageReceived(Metrics.Channel.UNICAST, MessageType.CHUNK);
+            context.getRestoreManager().putChunk(new String(fileId, StandardCharsets.US_ASCII), chunkNo,
+                    buffer.slice());
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a stored chunk to the unicast channel of an initiator peer
+     *
+     * @param storageManager Storage of the peer holding the chunk
+     * @param address Address of the initiator peer
+     * @param port Port of the initiator's channel
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     *
+     * @return Boolean representing whether the chunk was sent, or should be sent over the MDR channel instead
+     */
+    public static boolean sendChunk(StorageManager storageManager, InetAddress address, int port, String fileId,
+                                    int chunkNo) {
+        int length = storageManager.getChunkLength(fileId, chunkNo);
+        if (length < 0)
+            return false;
+
+        try (SocketChannel channel = SocketChannel.open()) {
+            channel.socket().connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(fileId.getBytes(StandardCharsets.US_ASCII)).putInt(chunkNo).putInt(length).flip();
+            while (header.hasRemaining())
+                channel.write(header);
+
+            if (!storageManager.transferChunk(fileId, chunkNo, channel))
+                return false;
+
+            channel.shutdownOutput();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Unicast transfer failed: " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -1,62 +1,150 @@
 package peer;
 
+import multicast.Message;
+import multicast.MessageCodec;
+import multicast.MessageType;
+import storage.ChunkCompressor;
 import storage.StorageManager;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Worker of the Backup protocol, responsible for the backup of a single chunk
  */
 public class BackupWorker implements Callable<Boolean> {
-    private final int INIT_WAIT_TIME = 1000, TIMEOUT_THRESHOLD = 5;
+    static final int TIMEOUT_THRESHOLD = 5;
+    private final int INIT_WAIT_TIME = 1000;
+    private static final int KEEP_BODY_SIZE = 32 + Integer.BYTES;
 
-    private final String protocolVersion = Peer.getProtocolVersion();
-    private final String id = Peer.getId();
+    private final PeerContext context;
+    private final StorageManager storageManager;
+    private final String protocolVersion;
+    private final int id;
 
     private final String fileId;
     private final byte[] chunk;
     private final int chunkNo, replicationDegree;
 
+    private final String previousFileId;
+    private final int previousChunkNo;
+
     /**
      * Constructor of the chunk backup worker, initializing it with the needed values
      *
+     * @param context Context of the initiator peer
      * @param fileId Id of the chunk's file
      * @param chunk Contents of the chunk
      * @param chunkNo Id of the chunk
      * @param replicationDegree Desired replication degree of the chunk
      */
-    BackupWorker(String fileId, byte[] chunk, int chunkNo, int replicationDegree) {
+    BackupWorker(PeerContext context, String fileId, byte[] chunk, int chunkNo, int replicationDegree) {
+        this(context, fileId, chunk, chunkNo, replicationDegree, null, -1);
+    }
+
+    /**
+     * Constructor of the backup worker of a chunk unchanged since a previous version of the file
+     *
+     * @param context Context of the initiator peer
+     * @param fileId Id of the chunk's file
+     * @param chunk Contents of the chunk
+     * @param chunkNo Id of the chunk
+     * @param replicationDegree Desired replication degree of the chunk
+     * @param previousFileId Id of the previous version of the file, or null if the chunk must be sent
+     * @param previousChunkNo Id of the chunk with the same contents on the previous version
+     */
+    BackupWorker(PeerContext context, String fileId, byte[] chunk, int chunkNo, int replicationDegree,
+                 String previousFileId, int previousChunkNo) {
+        this.context = context;
+        this.storageManager = context.getStorageManager();
+        this.protocolVersion = context.getProtocolVersion();
+        this.id = context.getId();
         this.fileId = fileId;
         this.chunk = chunk;
         this.chunkNo = chunkNo;
         this.replicationDegree = replicationDegree;
+        this.previousFileId = previousFileId;
+        this.previousChunkNo = previousChunkNo;
     }
 
     /**
      * Method implementing the actions performed by the worker to execute the chunk backup protocol
      *
+     * The worker finishes as soon as the chunk reaches the desired replication degree, retransmitting the chunk with
+     * an exponential back-off while it doesn't. The wait for the peers only starts once the chunk is actually sent,
+     * so the time spent on the send queue of a paced channel never counts as a timeout. A chunk unchanged since the
+     * previous version of the file is first kept by the peers storing it, and only sent if that isn't enough to reach
+     * the desired replication degree. The retransmissions and the time taken to reach the replication degree are
+     * recorded on the peer's metrics.
+     *
      * @return Boolean representing whether the chunk backup was successful or not
      */
     @Override
     public Boolean call() {
         int waitTime = INIT_WAIT_TIME, timeoutCounter = 0;
-        String[] header = new String[]{"PUTCHUNK", protocolVersion, id, fileId,
-                String.valueOf(chunkNo), String.valueOf(replicationDegree)};
-        do {
-            Peer.mdb.sendMessage(header, chunk);
-
-            try {
-                Thread.sleep(waitTime);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        byte[] body = storageManager.isCompressed(fileId) ? ChunkCompressor.compress(chunk) : chunk;
+        Message message = new Message(MessageType.PUTCHUNK, protocolVersion, id, fileId, chunkNo, replicationDegree,
+                body);
+        CompletableFuture<Void> replicated = storageManager.awaitChunkReplication(fileId, chunkNo);
+        long start = System.nanoTime();
+        try {
+            if (previousFileId != null && keepChunk(replicated)) {
+                context.getMetrics().chunkReplicated(0, System.nanoTime() - start);
+                return true;
             }
 
-            if (StorageManager.getChunkReplication(fileId, chunkNo) >= this.replicationDegree)
-                return true;
+            do {
+                if (timeoutCounter == 0)
+                    context.mdb.sendMessage(message).get();
+                else
+                    context.mdb.resendMessage(message).get();
+
+                try {
+                    replicated.get(waitTime, TimeUnit.MILLISECONDS);
+                    context.getMetrics().chunkReplicated(timeoutCounter, System.nanoTime() - start);
+                    return true;
+                } catch (TimeoutException e) {
+                    waitTime *= 2;
+                }
+            } while (++timeoutCounter < TIMEOUT_THRESHOLD);
+
+            context.getMetrics().chunkUnreplicated();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } finally {
+            replicated.cancel(false);
+        }
+    }
 
-            waitTime *= 2;
-        } while(++timeoutCounter < TIMEOUT_THRESHOLD);
+    /**
+     * Asks the peers storing the chunk on the previous version of the file to keep it on this version
+     *
+     * @param replicated Future completed once the chunk reaches the desired replication degree
+     *
+     * @return Boolean representing whether the chunk reached the desired replication degree
+     *
+     * @throws InterruptedException if interrupted while waiting for the peers
+     * @throws ExecutionException if the replication wait failed
+     */
+    private boolean keepChunk(CompletableFuture<Void> replicated) throws InterruptedException, ExecutionException {
+        byte[] previous = ByteBuffer.allocate(KEEP_BODY_SIZE)
+                .put(MessageCodec.fromHex(previousFileId)).putInt(previousChunkNo).array();
+        context.mc.sendMessage(new Message(MessageType.KEEPCHUNK, protocolVersion, id, fileId, chunkNo,
+                replicationDegree, previous));
 
-        return false;
+        try {
+            replicated.get(INIT_WAIT_TIME, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
     }
 }
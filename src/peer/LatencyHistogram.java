@@ -0,0 +1,108 @@
+package peer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies, recorded concurrently without locks
+ *
+ * Latencies are kept in microseconds, on buckets growing exponentially with 8 linear sub-buckets each, so every
+ * percentile is reported within 12.5% of the recorded value.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Records a latency
+     *
+     * @param nanos Latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+
+        buckets.incrementAndGet(bucket(micros));
+        count.increment();
+        total.add(micros);
+        max.accumulate(micros);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Retrieves a percentile of the recorded latencies, as the upper bound of the bucket holding it
+     *
+     * @param percentile Percentile, between 0 and 1
+     *
+     * @return Latency at the percentile, in milliseconds, or 0 if none was recorded
+     */
+    public double getPercentile(double percentile) {
+        long target = (long) Math.ceil(percentile * count.sum());
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, target))
+                return Math.min(upperBound(i), max.get()) / 1000d;
+        }
+
+        return max.get() / 1000d;
+    }
+
+    /**
+     * @return Summary of the recorded latencies, in milliseconds, by name
+     */
+    public Map<String, Double> getSummary() {
+        long count = this.count.sum();
+
+        Map<String, Double> summary = new LinkedHashMap<>();
+        summary.put("count", (double) count);
+        summary.put("mean", count > 0 ? total.sum() / 1000d / count : 0);
+        summary.put("p50", getPercentile(0.5));
+        summary.put("p90", getPercentile(0.9));
+        summary.put("p99", getPercentile(0.99));
+        summary.put("max", max.get() / 1000d);
+        return summary;
+    }
+
+    @Override
+    public String toString() {
+        Map<String, Double> summary = getSummary();
+        return String.format("%d samples, mean %.1f ms, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                count.sum(), summary.get("mean"), summary.get("p50"), summary.get("p90"), summary.get("p99"),
+                summary.get("max"));
+    }
+
+    /**
+     * Selects the bucket of a latency, latencies too large for the buckets going to the top one
+     */
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        if (bucket == BUCKETS - 1)
+            return Long.MAX_VALUE;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+    }
+}
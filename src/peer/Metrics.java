@@ -0,0 +1,237 @@
+package peer;
+
+import multicast.MessageType;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a peer's protocols, covering the messages it receives, the chunks it backs up and restores, its storage
+ * and its thread pools
+ *
+ * Counters are LongAdders and latencies go to lock-free histograms, so the workers recording them never contend on a
+ * lock. Gauges such as the stored bytes and the queue depths are read from the peer when the metrics are retrieved.
+ *
+ * @see LatencyHistogram
+ */
+public class Metrics implements MetricsMXBean {
+    /**
+     * Channels the messages of a peer are received on, the chunks restored over TCP coming through the unicast channel
+     */
+    public enum Channel {
+        MC, MDB, MDR, UNICAST
+    }
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final PeerContext context;
+
+    private final LongAdder[][] receivedMessages = new LongAdder[Channel.values().length][TYPES.length];
+    private final LongAdder decodeFailures = new LongAdder();
+    private final LongAdder discardedMessages = new LongAdder();
+
+    private final LongAdder[] retransmissionsPerChunk = new LongAdder[BackupWorker.TIMEOUT_THRESHOLD];
+    private final LongAdder unreplicatedChunks = new LongAdder();
+    private final LatencyHistogram replicationLatency = new LatencyHistogram();
+    private final LatencyHistogram restoreLatency = new LatencyHistogram();
+
+    /**
+     * Constructor creating the metrics of a peer
+     *
+     * @param context Context of the peer, the gauges are read from
+     */
+    Metrics(PeerContext context) {
+        this.context = context;
+
+        for (LongAdder[] counters : receivedMessages)
+            Arrays.setAll(counters, (i) -> new LongAdder());
+        Arrays.setAll(retransmissionsPerChunk, (i) -> new LongAdder());
+    }
+
+    /**
+     * Records a message received by the peer
+     *
+     * @param channel Channel the message was received on
+     * @param type Type of the message
+     */
+    public void messageReceived(Channel channel, MessageType type) {
+        receivedMessages[channel.ordinal()][type.ordinal()].increment();
+    }
+
+    /**
+     * Records a datagram discarded for not being a valid message
+     */
+    public void decodeFailed() {
+        decodeFailures.increment();
+    }
+
+    /**
+     * Records a valid message discarded while being processed
+     */
+    public void messageDiscarded() {
+        discardedMessages.increment();
+    }
+
+    /**
+     * Records the backup of a chunk that reached the desired replication degree
+     *
+     * @param retransmissions Number of times the PUTCHUNK message was sent again
+     * @param nanos Time taken to reach the desired replication degree, in nanoseconds
+     */
+    void chunkReplicated(int retransmissions, long nanos) {
+        retransmissionsPerChunk[retransmissions].increment();
+        replicationLatency.record(nanos);
+    }
+
+    /**
+     * Records the backup of a chunk that never reached the desired replication degree
+     */
+    void chunkUnreplicated() {
+        unreplicatedChunks.increment();
+    }
+
+    /**
+     * Records the arrival of a chunk being restored
+     *
+     * @param nanos Time taken by the chunk to arrive since first requested, in nanoseconds
+     */
+    void chunkRestored(long nanos) {
+        restoreLatency.record(nanos);
+    }
+
+    @Override
+    public Map<String, Long> getReceivedMessages() {
+        Map<String, Long> received = new LinkedHashMap<>();
+        for (Channel channel : Channel.values()) {
+            for (MessageType type : TYPES) {
+                long count = receivedMessages[channel.ordinal()][type.ordinal()].sum();
+                if (count > 0)
+                    received.put(channel + " " + type, count);
+            }
+        }
+
+        return received;
+    }
+
+    @Override
+    public long getDecodeFailures() {
+        return decodeFailures.sum();
+    }
+
+    @Override
+    public long getDiscardedMessages() {
+        return discardedMessages.sum();
+    }
+
+    @Override
+    public Map<String, Long> getSentMessages() {
+        Map<String, Long> sent = new LinkedHashMap<>();
+        sent.put("MC", context.mc.getSentMessages());
+        sent.put("MDB", context.mdb.getSentMessages());
+        sent.put("MDR", context.mdr.getSentMessages());
+        return sent;
+    }
+
+    @Override
+    public Map<String, Long> getSentBytes() {
+        Map<String, Long> sent = new LinkedHashMap<>();
+        sent.put("MC", context.mc.getSentBytes());
+        sent.put("MDB", context.mdb.getSentBytes());
+        sent.put("MDR", context.mdr.getSentBytes());
+        return sent;
+    }
+
+    @Override
+    public long getPutchunkRetransmissions() {
+        return context.mdb.getRetransmissions();
+    }
+
+    @Override
+    public long[] getPutchunkRetransmissionsPerChunk() {
+        return Arrays.stream(retransmissionsPerChunk).mapToLong(LongAdder::sum).toArray();
+    }
+
+    @Override
+    public long getUnreplicatedChunks() {
+        return unreplicatedChunks.sum();
+    }
+
+    @Override
+    public Map<String, Double> getReplicationLatency() {
+        return replicationLatency.getSummary();
+    }
+
+    @Override
+    public Map<String, Double> getRestoreLatency() {
+        return restoreLatency.getSummary();
+    }
+
+    @Override
+    public long getStoredBytes() {
+        return context.getStorageManager().getStoredBytes();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        putQueueDepth(depths, "backup", context.getBackupThreadPool());
+        putQueueDepth(depths, "restore", context.getRestoreThreadPool());
+        putQueueDepth(depths, "multicast", context.getMulticastThreadPool());
+        putQueueDepth(depths, "scheduler", context.getScheduler());
+        depths.put("hash", (int) (context.getHashPool().getQueuedSubmissionCount() +
+                context.getHashPool().getQueuedTaskCount()));
+        depths.put("mdb-send", context.mdb.getQueuedMessages());
+        return depths;
+    }
+
+    /**
+     * Adds the queue depth of a thread pool, unless it runs every task on its own virtual thread and has no queue
+     */
+    private static void putQueueDepth(Map<String, Integer> depths, String name, ExecutorService pool) {
+        if (pool instanceof ThreadPoolExecutor)
+            depths.put(name, ((ThreadPoolExecutor) pool).getQueue().size());
+    }
+
+    /**
+     * Retrieves the metrics of the peer in a human readable format
+     *
+     * @return String with the metrics of the peer
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+
+        report.append("- Received Messages:").append(System.lineSeparator());
+        for (Map.Entry<String, Long> entry : getReceivedMessages().entrySet())
+            appendLine(report, "  - " + entry.getKey() + ": " + entry.getValue());
+        appendLine(report, "  - Decode failures: " + getDecodeFailures());
+        appendLine(report, "  - Discarded: " + getDiscardedMessages());
+
+        report.append("- Sent Messages:").append(System.lineSeparator());
+        Map<String, Long> sentBytes = getSentBytes();
+        for (Map.Entry<String, Long> entry : getSentMessages().entrySet())
+            appendLine(report, "  - " + entry.getKey() + ": " + entry.getValue() + " (" +
+                    sentBytes.get(entry.getKey()) + " bytes)");
+
+        report.append("- Backup:").append(System.lineSeparator());
+        appendLine(report, "  - PUTCHUNK retransmissions: " + getPutchunkRetransmissions());
+        appendLine(report, "  - Chunks by retransmissions: " + Arrays.toString(getPutchunkRetransmissionsPerChunk()));
+        appendLine(report, "  - Chunks not fully replicated: " + getUnreplicatedChunks());
+        appendLine(report, "  - Time to replication degree: " + replicationLatency);
+
+        report.append("- Restore:").append(System.lineSeparator());
+        appendLine(report, "  - GETCHUNK to CHUNK latency: " + restoreLatency);
+
+        appendLine(report, "- Stored Bytes: " + getStoredBytes());
+        appendLine(report, "- Queue Depths: " + getQueueDepths());
+
+        return report.toString();
+    }
+
+    private static void appendLine(StringBuilder report, String line) {
+        report.append(line).append(System.lineSeparator());
+    }
+}
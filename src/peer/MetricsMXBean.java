@@ -0,0 +1,72 @@
+package peer;
+
+import java.util.Map;
+
+/**
+ * Management interface of the metrics of a peer, registered on the platform MBean server
+ *
+ * Latencies are summarized in milliseconds, by count, mean, p50, p90, p99 and max.
+ *
+ * @see Metrics
+ */
+public interface MetricsMXBean {
+    /**
+     * @return Number of messages received, by channel and message type, as in "MDB PUTCHUNK"
+     */
+    Map<String, Long> getReceivedMessages();
+
+    /**
+     * @return Number of datagrams discarded for not being valid messages
+     */
+    long getDecodeFailures();
+
+    /**
+     * @return Number of valid messages discarded while being processed
+     */
+    long getDiscardedMessages();
+
+    /**
+     * @return Number of messages sent, by channel
+     */
+    Map<String, Long> getSentMessages();
+
+    /**
+     * @return Number of bytes sent, by channel
+     */
+    Map<String, Long> getSentBytes();
+
+    /**
+     * @return Number of PUTCHUNK messages sent again for not reaching the desired replication degree in time
+     */
+    long getPutchunkRetransmissions();
+
+    /**
+     * @return Number of chunks backed up by this peer, by the number of retransmissions they needed
+     */
+    long[] getPutchunkRetransmissionsPerChunk();
+
+    /**
+     * @return Number of chunks backed up by this peer that never reached the desired replication degree
+     */
+    long getUnreplicatedChunks();
+
+    /**
+     * @return Time taken by the chunks backed up by this peer to reach the desired replication degree
+     */
+    Map<String, Double> getReplicationLatency();
+
+    /**
+     * @return Time taken by the chunks restored by this peer to arrive after being requested
+     */
+    Map<String, Double> getRestoreLatency();
+
+    /**
+     * @return Size of the distinct contents of the stored chunks, in bytes
+     */
+    long getStoredBytes();
+
+    /**
+     * @return Number of tasks waiting on each of the peer's thread pools
+     */
+    Map<String, Integer> getQueueDepths();
+}
@@ -1,107 +1,53 @@
 package peer;
 
+import java.io.File;
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import client.ClientInterface;
-import multicast.MulticastInterface;
-import multicast.MulticastThread;
-import storage.StorageManager;
 
 /**
- * Class responsible for a Peer.
+ * Class responsible for starting up a Peer from the command line
  *
- * Contains all the important information such as the protocol version, the peer id, the multicast interfaces
- * and the thread pools
+ * The peer's protocol version, id, multicast channels, storage and thread pools are held by its context, while this
+ * class exports its service for RMI on the given access point.
+ *
+ * @see PeerContext
  */
 public class Peer {
-    private static String protocolVersion;
-    private static String id;
-    private static String accessPoint;
-
-    public static MulticastInterface mc, mdb, mdr;
-
-    private static final ExecutorService backupThreadPool = Executors.newFixedThreadPool(50);
-
-    private static final ExecutorService restoreThreadPool = Executors.newFixedThreadPool(20);
-
-    private static final ExecutorService multicastThreadPool = Executors.newCachedThreadPool();
-
     /**
      * Main method for the starting up a Peer, configured based on the given command line arguments
      *
      * @param args command line arguments used to define the peer's configuration
-     * @throws RemoteException on RMI failure
+     * @throws IOException on RMI failure or failure to set up the peer's storage
      */
-    public static void main(String[] args) throws RemoteException {
+    public static void main(String[] args) throws IOException {
         if (args.length != 9)
             throw new IllegalArgumentException();
 
-        initPeerInfo(args);
-        initRMI();
-        initMulticast(args);
-        StorageManager.storageSetup();
+        int id = Integer.parseInt(args[1]);
+        PeerContext context = new PeerContext(args[0], id, new File("./peer" + id), args[3],
+                Integer.parseInt(args[4]), args[5], Integer.parseInt(args[6]), args[7], Integer.parseInt(args[8]));
 
-        System.out.println("Peer(" + id + ") online.");
-    }
+        context.start();
+        initRMI(context, args[2]);
 
-    /**
-     * Initiates the peer's protocol version, id and access point for RMI
-     *
-     * @param args command line arguments used to define the peer's configuration
-     */
-    private static void initPeerInfo(String[] args) {
-        Peer.protocolVersion = args[0];
-        Peer.id = args[1];
-        Peer.accessPoint = args[2];
+        System.out.println("Peer(" + id + ") online.");
     }
 
     /**
      * Initiates the peer RMI stub
      *
+     * @param context Context of the peer
+     * @param accessPoint Name the stub is bound to on the registry
+     *
      * @throws RemoteException on RMI failure
      */
-    private static void initRMI() throws RemoteException {
-        Service service = new Service();
+    private static void initRMI(PeerContext context, String accessPoint) throws RemoteException {
+        Service service = new Service(context);
         ClientInterface stub = (ClientInterface) UnicastRemoteObject.exportObject(service, 0);
-        LocateRegistry.getRegistry().rebind(Peer.accessPoint, stub);
-    }
-
-    /**
-     * Initiates the Multicast Threads based on the input configuration
-     *
-     * @param args command line arguments used to define the peer's configuration
-     */
-    private static void initMulticast(String[] args) {
-        mc = new MulticastInterface(args[3], Integer.parseInt(args[4]));
-        mdb = new MulticastInterface(args[5], Integer.parseInt(args[6]));
-        mdr = new MulticastInterface(args[7], Integer.parseInt(args[8]));
-
-        new MulticastThread(mc).start();
-        new MulticastThread(mdb).start();
-        new MulticastThread(mdr).start();
-    }
-
-    public static String getProtocolVersion() {
-        return protocolVersion;
-    }
-
-    public static String getId() {
-        return id;
-    }
-
-    public static ExecutorService getBackupThreadPool() {
-        return backupThreadPool;
-    }
-
-    public static ExecutorService getMulticastThreadPool() {
-        return multicastThreadPool;
-    }
-
-    public static ExecutorService getRestoreThreadPool() {
-        return restoreThreadPool;
+        LocateRegistry.getRegistry().rebind(accessPoint, stub);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,322 @@
+package peer;
+
+import multicast.MulticastInterface;
+import multicast.MulticastThread;
+import multicast.UnicastChannel;
+import storage.ChunkIndex;
+import storage.RestoreManager;
+import storage.StorageManager;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Context of a single peer, owning its multicast channels, storage, managers and thread pools
+ *
+ * Peers share no state besides the interned chunk keys, so several of them can run on the same JVM, each with its own
+ * context. The channels are opened on creation, but no message is processed until the context is started. A started
+ * peer registers its metrics on the platform MBean server, as peer:type=Metrics,id=[id].
+ *
+ * @see Peer
+ */
+public class PeerContext implements AutoCloseable {
+    private static final int CHUNK_SIZE = 64000;
+
+    private static final boolean virtualThreads = Boolean.getBoolean("peer.virtualThreads") && hasVirtualThreads();
+
+    // On virtual threads, the windows only bound the memory taken by the chunks in flight instead of the concurrency
+    private static final int backupWindow =
+            Integer.getInteger("peer.backupWindow", virtualThreads ? memoryWindow(2 * CHUNK_SIZE) : 50);
+    private static final int restoreWindow =
+            Integer.getInteger("peer.restoreWindow", virtualThreads ? memoryWindow(CHUNK_SIZE) : 20);
+
+    private static final long mdbRate = Long.getLong("peer.mdbRate", 10_000_000);
+    private static final int unicastPort = Integer.getInteger("peer.unicastPort", 0);
+
+    private final String protocolVersion;
+    private final int id;
+    private final File directory;
+
+    public final MulticastInterface mc, mdb, mdr;
+    private final MulticastThread[] multicastThreads;
+    private UnicastChannel unicastChannel;
+
+    private final StorageManager storageManager;
+    private final RestoreManager restoreManager;
+    private final ChunkIndex<Boolean> removedChunks = new ChunkIndex<>();
+    private final Metrics metrics = new Metrics(this);
+    private ObjectName metricsName;
+
+    private final ExecutorService backupThreadPool = newWorkerPool(50);
+
+    private final ExecutorService restoreThreadPool = newWorkerPool(20);
+
+    private final ExecutorService multicastThreadPool =
+            newWorkerPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+    private final ExecutorService unicastThreadPool = newWorkerPool(8);
+
+    private final ForkJoinPool hashPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+    /**
+     * Constructor creating the context of a peer, opening its multicast channels
+     *
+     * Chunks sent through the MDB channel are paced at the rate given by the peer.mdbRate property.
+     *
+     * @param protocolVersion Protocol version run by the peer
+     * @param id Id of the peer
+     * @param directory Directory holding the stored chunks and the restored files of the peer
+     * @param mcAddress IPV4 address of the control channel
+     * @param mcPort Port of the control channel
+     * @param mdbAddress IPV4 address of the backup channel
+     * @param mdbPort Port of the backup channel
+     * @param mdrAddress IPV4 address of the restore channel
+     * @param mdrPort Port of the restore channel
+     *
+     * @throws IOException on failure to join any of the multicast channels
+     */
+    public PeerContext(String protocolVersion, int id, File directory, String mcAddress, int mcPort,
+                       String mdbAddress, int mdbPort, String mdrAddress, int mdrPort) throws IOException {
+        this.protocolVersion = protocolVersion;
+        this.id = id;
+        this.directory = directory;
+
+        this.storageManager = new StorageManager(this);
+        this.restoreManager = new RestoreManager(storageManager);
+
+        // The channels already joined are closed if any of the others can't be
+        this.mc = new MulticastInterface(mcAddress, mcPort);
+        try {
+            this.mdb = new MulticastInterface(mdbAddress, mdbPort, mdbRate);
+            try {
+                this.mdr = new MulticastInterface(mdrAddress, mdrPort);
+            } catch (IOException e) {
+                mdb.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            mc.close();
+            throw e;
+        }
+
+        this.multicastThreads = new MulticastThread[] {
+                new MulticastThread(this, Metrics.Channel.MC, mc),
+                new MulticastThread(this, Metrics.Channel.MDB, mdb),
+                new MulticastThread(this, Metrics.Channel.MDR, mdr)
+        };
+    }
+
+    /**
+     * Sets up the peer's storage and starts processing the messages of the multicast channels
+     *
+     * Enhanced peers also open a unicast channel to receive the chunks they restore, restoring over the MDR channel
+     * alone if it can't be opened.
+     *
+     * @throws IOException on failure to set up the peer's storage
+     */
+    public void start() throws IOException {
+        storageManager.storageSetup();
+
+        for (MulticastThread thread : multicastThreads)
+            thread.start();
+
+        if (isEnhanced()) {
+            try {
+                unicastChannel = new UnicastChannel(this, unicastPort);
+                unicastChannel.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            metricsName = new ObjectName("peer:type=Metrics,id=" + id);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            metricsName = null;
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the peer, discarding the pending work of its thread pools and closing its channels and storage
+     */
+    @Override
+    public void close() {
+        for (MulticastThread thread : multicastThreads)
+            thread.interrupt();
+
+        scheduler.shutdownNow();
+        multicastThreadPool.shutdownNow();
+        backupThreadPool.shutdownNow();
+        restoreThreadPool.shutdownNow();
+        unicastThreadPool.shutdownNow();
+        hashPool.shutdownNow();
+
+        mc.close();
+        mdb.close();
+        mdr.close();
+
+        if (unicastChannel != null)
+            unicastChannel.interrupt();
+
+        storageManager.close();
+
+        try {
+            if (metricsName != null)
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return Directory holding the stored chunks and the restored files of the peer
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return Port of the unicast channel the peer receives restored chunks on, or -1 if it has none
+     */
+    public int getUnicastPort() {
+        return unicastChannel == null ? -1 : unicastChannel.getPort();
+    }
+
+    /**
+     * @return Whether this peer runs the enhanced protocols of version 2.0
+     */
+    public boolean isEnhanced() {
+        return protocolVersion.startsWith("2.");
+    }
+
+    /**
+     * @return Whether this peer compresses the chunks it backs up, as in the protocol versions 1.1 and 2.1
+     */
+    public boolean isCompressing() {
+        return protocolVersion.endsWith(".1");
+    }
+
+    public StorageManager getStorageManager() {
+        return storageManager;
+    }
+
+    public RestoreManager getRestoreManager() {
+        return restoreManager;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Chunks announced as removed by another peer, flagged until a PUTCHUNK for them is seen
+     */
+    public ChunkIndex<Boolean> getRemovedChunks() {
+        return removedChunks;
+    }
+
+    /**
+     * Creates a thread pool for the peer's workers
+     *
+     * When the peer.virtualThreads property is set, each task runs on its own virtual thread instead, so the number of
+     * concurrent workers isn't capped by the pool size. Virtual threads are looked up reflectively, falling back to
+     * platform threads on Java versions without them.
+     *
+     * @param threads Number of platform threads of the pool
+     *
+     * @return Thread pool for the workers
+     */
+    private static ExecutorService newWorkerPool(int threads) {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Checks whether the runtime supports virtual threads, warning that platform threads are used if it doesn't
+     */
+    private static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            System.err.println("Virtual threads unavailable, using platform threads.");
+            return false;
+        }
+    }
+
+    /**
+     * Sizes a window of chunks in flight so that its chunks take at most a quarter of the maximum heap
+     *
+     * @param chunkMemory Memory taken by each chunk in flight, in bytes
+     *
+     * @return Number of chunks in the window
+     */
+    private static int memoryWindow(int chunkMemory) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4 / chunkMemory));
+    }
+
+    /**
+     * @return Boolean representing whether the workers run on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getBackupWindow() {
+        return backupWindow;
+    }
+
+    public int getRestoreWindow() {
+        return restoreWindow;
+    }
+
+    public ExecutorService getBackupThreadPool() {
+        return backupThreadPool;
+    }
+
+    public ExecutorService getMulticastThreadPool() {
+        return multicastThreadPool;
+    }
+
+    public ExecutorService getRestoreThreadPool() {
+        return restoreThreadPool;
+    }
+
+    public ExecutorService getUnicastThreadPool() {
+        return unicastThreadPool;
+    }
+
+    public ForkJoinPool getHashPool() {
+        return hashPool;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+}
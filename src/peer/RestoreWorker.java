@@ -1,60 +1,113 @@
 package peer;
 
+import multicast.Message;
+import multicast.MessageType;
+import storage.CorruptedChunkException;
 import storage.RestoreManager;
+import storage.RestoreWriter;
 
+import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Worker of the Restore protocol, responsible for the restore of a single chunk
  */
-public class RestoreWorker implements Callable<byte[]> {
+public class RestoreWorker implements Callable<Boolean> {
     private final int INIT_WAIT_TIME = 1000;
 
-    private final String protocolVersion = Peer.getProtocolVersion();
-    private final String id = Peer.getId();
+    private final PeerContext context;
+    private final RestoreManager restoreManager;
+    private final String protocolVersion;
+    private final int id;
 
     private final String fileId;
     private final int chunkNo;
+    private final RestoreWriter writer;
+    private final Semaphore window;
 
     /**
      * Constructor of the chunk restore worker, initializing it with the needed values
      *
+     * @param context Context of the initiator peer
      * @param fileId Id of the chunk's file
      * @param chunkNo Id of the chunk
+     * @param writer Writer of the restored file
+     * @param window Window of chunks in flight, released once this worker is done with the chunk
      */
-    public RestoreWorker(String fileId, int chunkNo) {
+    public RestoreWorker(PeerContext context, String fileId, int chunkNo, RestoreWriter writer, Semaphore window) {
+        this.context = context;
+        this.restoreManager = context.getRestoreManager();
+        this.protocolVersion = context.getProtocolVersion();
+        this.id = context.getId();
         this.fileId = fileId;
         this.chunkNo = chunkNo;
+        this.writer = writer;
+        this.window = window;
     }
 
     /**
      * Method implementing the actions performed by the worker to execute the chunk restore protocol
      *
-     * @return Binary content of the restored chunk.
+     * The worker wakes up as soon as the chunk arrives, resending the request with an exponential back-off while it
+     * doesn't. The chunk is written to the restored file right away. Enhanced peers advertise their unicast channel on
+     * the request, so that the chunk is sent to them over TCP. A chunk not matching its digest is requested again.
+     * The time taken by the chunk to arrive is recorded on the peer's metrics. The worker gives up as soon as another
+     * chunk of the file fails to be restored, and marks the restore as failed if this chunk does.
+     *
+     * @return Boolean representing whether the chunk restore was successful or not
      */
     @Override
-    public byte[] call() {
+    public Boolean call() {
         int waitTime = INIT_WAIT_TIME;
-        byte[] chunk = null;
+        Message message = new Message(MessageType.GETCHUNK, protocolVersion, id, fileId, chunkNo, 0);
+        if (context.getUnicastPort() >= 0)
+            message = message.withPort(context.getUnicastPort());
+        CompletableFuture<byte[]> chunk = restoreManager.requestChunk(fileId, chunkNo);
+        long start = System.nanoTime();
+        boolean restored = false;
 
-        Peer.mc.sendMessage(new String[] {"GETCHUNK", protocolVersion, id, fileId, String.valueOf(chunkNo)} );
+        try {
+            while (waitTime < 32000 && !writer.isFailed()) {
+                if (waitTime == INIT_WAIT_TIME)
+                    context.mc.sendMessage(message);
+                else
+                    context.mc.resendMessage(message);
 
-        while(chunk == null && waitTime < 32000) {
-            RestoreManager.addChunk(fileId, chunkNo);
+                try {
+                    byte[] body = chunk.get(waitTime, TimeUnit.MILLISECONDS);
+                    context.getMetrics().chunkRestored(System.nanoTime() - start);
 
-            try {
-                Thread.sleep(waitTime);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+                    writer.write(chunkNo, body);
+                    restored = true;
+                    return true;
+                } catch (TimeoutException e) {
+                    waitTime *= 2;
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof CorruptedChunkException)) throw e;
 
-            chunk = RestoreManager.retrieveChunk(fileId, chunkNo);
-            waitTime *= 2;
-        }
+                    // A corrupted chunk is requested again right away, counting as one more attempt
+                    chunk = restoreManager.requestChunk(fileId, chunkNo);
+                    waitTime *= 2;
+                }
+            }
 
-        if (chunk == null)
+            return false;
+        } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | IOException e) {
+            return false;
+        } finally {
+            if (!restored)
+                writer.fail();
 
-        return chunk;
+            restoreManager.cancelChunk(fileId, chunkNo);
+            window.release();
+        }
     }
 }
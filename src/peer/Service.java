@@ -1,14 +1,23 @@
 package peer;
 
 import client.ClientInterface;
+import multicast.Message;
+import multicast.MessageType;
+import storage.RestoreWriter;
 import storage.StorageManager;
+import storage.StorageState;
 
 import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class responsible for RMI on the Peer side, performing the actions documented at ClientInterface
@@ -16,27 +25,85 @@ import java.util.concurrent.Future;
  * @see ClientInterface
  */
 public class Service implements ClientInterface {
+    private final PeerContext context;
+    private final StorageManager storageManager;
+
+    // Files being restored, as the chunk requests of a file are shared by every restore of it
+    private final Set<String> restoringFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor of the service of a peer
+     *
+     * @param context Context of the peer
+     */
+    public Service(PeerContext context) {
+        this.context = context;
+        this.storageManager = context.getStorageManager();
+    }
+
     @Override
     public boolean backup(String path, int replicationDegree) {
+        return backup(path, replicationDegree, false);
+    }
+
+    @Override
+    public boolean backup(String path, int replicationDegree, boolean incremental) {
         try {
-            System.out.println("BACKUP COMMAND: " + path + " " + replicationDegree);
+            System.out.println("BACKUP COMMAND: " + path + " " + replicationDegree +
+                    (incremental ? " INCREMENTAL" : ""));
 
-            if (StorageManager.isBackedUp(path))
+            // An incremental backup only deletes the previous version once the new one is backed up
+            String previousId = incremental ? storageManager.getFileId(path) : null;
+            Map<ByteBuffer, Integer> previousChunks = storageManager.indexChunkDigests(previousId);
+            if (!incremental && storageManager.isBackedUp(path))
                 this.delete(path);
 
-            String fileId = StorageManager.generateFileId(path, replicationDegree);
+            String fileId = storageManager.generateFileId(path, replicationDegree);
+            int chunkNum = storageManager.getChunkNum(fileId);
+            long retransmissions = context.mdb.getRetransmissions();
+            AtomicInteger keptChunks = new AtomicInteger();
+
+            // Chunks are read on demand, so only the chunks within the window are kept in memory at once. Each chunk
+            // is hashed on the hash pool while the next ones are read, and then handed to its backup worker. The
+            // chunk leaves the window once its backup is done, even if it failed to be hashed or handed over
+            Semaphore window = new Semaphore(context.getBackupWindow());
+            List<Future<Boolean>> resultList = new ArrayList<>(chunkNum);
+            try (FileChannel channel = storageManager.openFileChannel(fileId)) {
+                for (int chunkNo = 0; chunkNo < chunkNum; chunkNo++) {
+                    window.acquire();
 
-            int chunkNo = 0;
-            LinkedList<Callable<Boolean>> workers = new LinkedList<>();
-            for (byte[] chunk : StorageManager.retrieveFileChunks(fileId))
-                workers.add(new BackupWorker(fileId, chunk, chunkNo++, replicationDegree));
+                    int currentChunkNo = chunkNo;
+                    byte[] chunk = storageManager.retrieveFileChunk(fileId, channel, chunkNo);
+                    resultList.add(storageManager.hashFileChunk(fileId, chunkNo, chunk).thenApplyAsync((digest) -> {
+                        Integer previousChunkNo = previousChunks.get(ByteBuffer.wrap(digest));
+                        if (previousChunkNo == null)
+                            return new BackupWorker(context, fileId, chunk, currentChunkNo, replicationDegree).call();
 
-            List<Future<Boolean>> resultList = Peer.getBackupThreadPool().invokeAll(workers);
+                        keptChunks.incrementAndGet();
+                        return new BackupWorker(context, fileId, chunk, currentChunkNo, replicationDegree, previousId,
+                                previousChunkNo).call();
+                    }, context.getBackupThreadPool()).whenComplete((result, e) -> window.release()));
+                }
+            }
 
+            int lostChunks = 0;
             for (Future<Boolean> result : resultList) {
-                if (!result.get()) throw new Exception();
+                if (!result.get()) lostChunks++;
+            }
+
+            storageManager.computeMerkleRoot(fileId);
+
+            if (previousId != null && !previousId.equals(fileId)) {
+                storageManager.deleteVersion(previousId);
+                context.mc.sendMessage(new Message(MessageType.DELETE, context.getProtocolVersion(), context.getId(),
+                        previousId, 0, 0));
             }
 
+            System.out.println("Sent " + (chunkNum - keptChunks.get()) + " chunks and kept " + keptChunks + " with " +
+                    (context.mdb.getRetransmissions() - retransmissions) + " retransmissions, " + lostChunks +
+                    " chunks not fully replicated.");
+            if (lostChunks > 0) throw new Exception();
+
             System.out.println("Backup protocol for \"" + path + "\" successful.");
             return true;
         } catch (Exception e) {
@@ -50,27 +117,20 @@ public class Service implements ClientInterface {
         System.out.println("RESTORE COMMAND: " + path);
 
         try {
-            String fileId = StorageManager.getFileId(path);
+            String fileId = storageManager.getFileId(path);
             if (fileId == null)
                 throw new FileNotFoundException();
 
-            int chunkNum = StorageManager.getChunkNum(fileId);
-
-            LinkedList<Callable<byte[]>> workers = new LinkedList<>();
-            for (int chunkNo = 0; chunkNo < chunkNum; chunkNo++)
-                workers.add(new RestoreWorker(fileId, chunkNo));
-
-            List<Future<byte[]>> resultList = Peer.getRestoreThreadPool().invokeAll(workers);
-
-            byte[][] chunks = new byte[chunkNum][];
-            for (int i = 0; i < chunkNum; i++) {
-                if (!resultList.get(i).isDone())
-                    throw new InterruptedException();
-
-                chunks[i] = resultList.get(i).get();
+            if (!restoringFiles.add(fileId)) {
+                System.out.println("ERROR: Restore of \"" + path + "\" already in progress.");
+                return false;
             }
 
-            StorageManager.restoreFile(path, chunks);
+            try {
+                restore(path, fileId);
+            } finally {
+                restoringFiles.remove(fileId);
+            }
 
             System.out.println("Restore protocol for \"" + path + "\" successful.");
             return true;
@@ -80,16 +140,58 @@ public class Service implements ClientInterface {
         }
     }
 
+    /**
+     * Restores the chunks of a file, writing them to the restored file as they arrive
+     *
+     * @param path Path of the file
+     * @param fileId Id of the file
+     *
+     * @throws Exception on failure to restore any of the chunks
+     */
+    private void restore(String path, String fileId) throws Exception {
+        int chunkNum = storageManager.getChunkNum(fileId);
+
+        // Chunks are written as soon as they arrive, so only the chunks within the window are kept in memory
+        Semaphore window = new Semaphore(context.getRestoreWindow());
+        List<Future<Boolean>> resultList = new ArrayList<>(chunkNum);
+        try (RestoreWriter writer = storageManager.createRestoreWriter(path, fileId)) {
+            // No more chunks are requested once one of them fails to be restored
+            for (int chunkNo = 0; chunkNo < chunkNum; chunkNo++) {
+                window.acquire();
+                if (writer.isFailed()) {
+                    window.release();
+                    break;
+                }
+
+                resultList.add(context.getRestoreThreadPool().submit(
+                        new RestoreWorker(context, fileId, chunkNo, writer, window)
+                ));
+            }
+
+            for (Future<Boolean> result : resultList) {
+                if (!result.get()) {
+                    // Workers still waiting for their chunks are interrupted instead of requesting them again
+                    for (Future<Boolean> pending : resultList)
+                        pending.cancel(true);
+                    throw new Exception();
+                }
+            }
+
+            writer.commit();
+        }
+    }
+
     @Override
     public boolean delete(String path) {
         System.out.println("DELETE COMMAND: " + path);
 
         try {
-            String fileId = StorageManager.deleteFile(path);
+            String fileId = storageManager.deleteFile(path);
             if (fileId == null)
                 throw new FileNotFoundException();
 
-            Peer.mc.sendMessage(new String[] {"DELETE", Peer.getProtocolVersion(), Peer.getId(), fileId} );
+            context.mc.sendMessage(new Message(MessageType.DELETE, context.getProtocolVersion(), context.getId(),
+                    fileId, 0, 0));
 
             System.out.println("Delete protocol for \"" + path + "\" successful.");
             return true;
@@ -104,7 +206,7 @@ public class Service implements ClientInterface {
         System.out.println("RECLAIM COMMAND: " + diskSpace);
 
         try {
-            StorageManager.reclaimSpace(diskSpace);
+            storageManager.reclaimSpace(diskSpace);
 
             System.out.println("Reclaim protocol successful (" + diskSpace + " max storage).");
             return true;
@@ -119,12 +221,39 @@ public class Service implements ClientInterface {
         System.out.println("STATE COMMAND");
 
         try {
+            String state = storageManager.getState(null, 0, Integer.MAX_VALUE).toString();
             System.out.println("State retrieval successful");
-            return StorageManager.getState();
-        } catch (IOException e) {
+            return state;
+        } catch (Exception e) {
             System.out.println("ERROR: State retrieval failed.");
             return null;
         }
     }
 
+    @Override
+    public StorageState state(String filter, int offset, int limit) {
+        System.out.println("STATE COMMAND: " + offset + " " + limit + (filter != null ? " " + filter : ""));
+
+        try {
+            StorageState state = storageManager.getState(filter, offset, limit);
+            System.out.println("State retrieval successful");
+            return state;
+        } catch (Exception e) {
+            System.out.println("ERROR: State retrieval failed.");
+            return null;
+        }
+    }
+
+    @Override
+    public String metrics() {
+        System.out.println("METRICS COMMAND");
+
+        try {
+            return context.getMetrics().getReport();
+        } catch (Exception e) {
+            System.out.println("ERROR: Metrics retrieval failed.");
+            return null;
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the chunks backed up with the protocol versions 1.1 and 2.1
+ *
+ * A compressed chunk starts with a flag byte telling whether the rest of it is deflated, or was kept raw because it
+ * didn't compress. Only the initiator peer compresses and decompresses chunks, the other peers store them as they are.
+ */
+public class ChunkCompressor {
+    private static final byte RAW = 0, DEFLATED = 1;
+    private static final int LEVEL = Integer.getInteger("peer.compressionLevel", Deflater.DEFAULT_COMPRESSION);
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(LEVEL));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Compresses a chunk, keeping it raw if deflating it doesn't make it smaller
+     *
+     * @param chunk Contents of the chunk
+     *
+     * @return Compressed chunk, with its flag byte
+     */
+    public static byte[] compress(byte[] chunk) {
+        byte[] body = new byte[chunk.length + 1];
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(chunk);
+        deflater.finish();
+
+        // Deflating stops once the output is as large as the chunk itself
+        int length = deflater.deflate(body, 1, chunk.length);
+        if (deflater.finished() && length < chunk.length) {
+            body[0] = DEFLATED;
+            return Arrays.copyOf(body, length + 1);
+        }
+
+        body[0] = RAW;
+        System.arraycopy(chunk, 0, body, 1, chunk.length);
+        return body;
+    }
+
+    /**
+     * Decompresses a chunk
+     *
+     * @param body Compressed chunk, with its flag byte
+     *
+     * @return Contents of the chunk
+     *
+     * @throws IOException on malformed compressed chunks
+     */
+    public static byte[] decompress(ByteBuffer body) throws IOException {
+        if (!body.hasRemaining())
+            throw new IOException("Malformed compressed chunk");
+
+        ByteBuffer payload = body.duplicate();
+        byte flag = payload.get();
+
+        if (flag == RAW) {
+            byte[] chunk = new byte[payload.remaining()];
+            payload.get(chunk);
+            return chunk;
+        } else if (flag != DEFLATED) {
+            throw new IOException("Malformed compressed chunk");
+        }
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(payload);
+
+        byte[] chunk = new byte[FileInfo.CHUNK_SIZE];
+        try {
+            int length = inflater.inflate(chunk);
+            if (!inflater.finished())
+                throw new IOException("Malformed compressed chunk");
+
+            return Arrays.copyOf(chunk, length);
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed chunk", e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package storage;
+
+import java.util.HashMap;
+
+/**
+ * Thread-safe map from chunks to non negative counters, keyed by their packed chunk key
+ *
+ * Chunks without an entry count as 0, and counters dropping to 0 are removed, so reading a counter never allocates.
+ * The chunks with a counter are also indexed by file, so that removing the counters of a file only costs as much as
+ * its chunks.
+ *
+ * @see ChunkKey
+ */
+public class ChunkCounters extends ChunkTable {
+    private int[] values = new int[keys.length];
+
+    // Chunks with a counter, by the handle of their file id. A handle stays interned while its file has counters
+    private final HashMap<Integer, ChunkSet> files = new HashMap<>();
+
+    /**
+     * Retrieves the counter of a chunk
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     *
+     * @return Counter of the chunk
+     */
+    public synchronized int get(String fileId, int chunkNo) {
+        long key = ChunkKey.find(fileId, chunkNo);
+        if (key == 0) return 0;
+
+        int slot = indexOf(key);
+        return slot < 0 ? 0 : values[slot];
+    }
+
+    /**
+     * Increments the counter of a chunk
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     *
+     * @return Incremented counter
+     */
+    public synchronized int increment(String fileId, int chunkNo) {
+        long key = ChunkKey.of(fileId, chunkNo);
+
+        int slot = indexOf(key);
+        if (slot < 0) {
+            slot = insert(slot, key);
+            files.computeIfAbsent(ChunkKey.handle(key), (handle) -> new ChunkSet()).add(chunkNo);
+        }
+        ChunkKey.release(key);
+
+        return ++values[slot];
+    }
+
+    /**
+     * Decrements the counter of a chunk, never going below 0
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     *
+     * @return Decremented counter
+     */
+    public synchronized int decrement(String fileId, int chunkNo) {
+        long key = ChunkKey.find(fileId, chunkNo);
+        if (key == 0) return 0;
+
+        int slot = indexOf(key);
+        if (slot < 0) return 0;
+
+        int value = --values[slot];
+        if (value == 0)
+            remove(key, slot);
+
+        return value;
+    }
+
+    /**
+     * Removes the counter of a chunk
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     */
+    public synchronized void remove(String fileId, int chunkNo) {
+        long key = ChunkKey.find(fileId, chunkNo);
+        if (key == 0) return;
+
+        int slot = indexOf(key);
+        if (slot >= 0)
+            remove(key, slot);
+    }
+
+    /**
+     * Removes the counters of every chunk of a file
+     *
+     * @param fileId Id of the file
+     */
+    public synchronized void removeFile(String fileId) {
+        int handle = ChunkKey.handle(fileId);
+        if (handle == 0) return;
+
+        ChunkSet chunks = files.remove(handle);
+        if (chunks == null) return;
+
+        // The last removal may free the handle, so the keys of the file are built first
+        long[] fileKeys = new long[chunks.size()];
+        for (int i = 0; i < fileKeys.length; i++)
+            fileKeys[i] = ChunkKey.find(fileId, chunks.get(i));
+
+        for (long key : fileKeys)
+            removeAt(indexOf(key));
+    }
+
+    /**
+     * Removes the counter of a chunk at the given slot, along with the chunk from the index of its file
+     */
+    private void remove(long key, int slot) {
+        ChunkSet chunks = files.get(ChunkKey.handle(key));
+        chunks.remove(ChunkKey.chunkNo(key));
+        if (chunks.isEmpty())
+            files.remove(ChunkKey.handle(key));
+
+        removeAt(slot);
+    }
+
+    @Override
+    protected void move(int from, int to) {
+        values[to] = values[from];
+    }
+
+    @Override
+    protected void clear(int slot) {
+        values[slot] = 0;
+    }
+
+    @Override
+    protected Object allocate(int capacity) {
+        int[] oldValues = values;
+        values = new int[capacity];
+        return oldValues;
+    }
+
+    @Override
+    protected void transfer(Object oldValues, int from, int to) {
+        values[to] = ((int[]) oldValues)[from];
+    }
+}
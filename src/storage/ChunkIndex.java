@@ -0,0 +1,266 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Thread-safe map from chunks to values, keyed by their packed chunk key
+ *
+ * Lookups by fileId and chunkNo don't allocate, and chunks of files that were never interned are simply absent.
+ *
+ * The chunks are spread over 16 stripes by the hash of their key, each one a table with its own lock, so that the
+ * workers of a peer looking up different chunks seldom wait for each other. Operations on the whole index go through
+ * the stripes one at a time, so they aren't atomic.
+ *
+ * @param <V> Type of the values
+ *
+ * @see ChunkKey
+ */
+public class ChunkIndex<V> {
+    private static final int STRIPE_BITS = 4;
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    public ChunkIndex() {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    public V get(String fileId, int chunkNo) {
+        return get(ChunkKey.find(fileId, chunkNo));
+    }
+
+    public boolean contains(String fileId, int chunkNo) {
+        return get(fileId, chunkNo) != null;
+    }
+
+    public V put(String fileId, int chunkNo, V value) {
+        long key = ChunkKey.of(fileId, chunkNo);
+        try {
+            return put(key, value);
+        } finally {
+            ChunkKey.release(key);
+        }
+    }
+
+    public V putIfAbsent(String fileId, int chunkNo, V value) {
+        long key = ChunkKey.of(fileId, chunkNo);
+        try {
+            return putIfAbsent(key, value);
+        } finally {
+            ChunkKey.release(key);
+        }
+    }
+
+    public V remove(String fileId, int chunkNo) {
+        return remove(ChunkKey.find(fileId, chunkNo));
+    }
+
+    /**
+     * Retrieves the value of a chunk
+     *
+     * @param key Key of the chunk
+     *
+     * @return Value of the chunk, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0) return null;
+
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            int slot = stripe.indexOf(key);
+            return slot < 0 ? null : (V) stripe.values[slot];
+        }
+    }
+
+    /**
+     * Associates a value to a chunk
+     *
+     * @param key Key of the chunk
+     * @param value Value of the chunk
+     *
+     * @return Previous value of the chunk, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            int slot = stripe.indexOf(key);
+            if (slot < 0) {
+                slot = stripe.insert(slot, key);
+                stripe.values[slot] = value;
+                return null;
+            }
+
+            V previous = (V) stripe.values[slot];
+            stripe.values[slot] = value;
+            return previous;
+        }
+    }
+
+    /**
+     * Associates a value to a chunk, unless it already has one
+     *
+     * @param key Key of the chunk
+     * @param value Value of the chunk
+     *
+     * @return Current value of the chunk, or null if the given value was associated
+     */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(long key, V value) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            int slot = stripe.indexOf(key);
+            if (slot >= 0)
+                return (V) stripe.values[slot];
+
+            slot = stripe.insert(slot, key);
+            stripe.values[slot] = value;
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the value of a chunk, only if it is currently associated to the expected value
+     *
+     * @param key Key of the chunk
+     * @param expected Expected current value
+     * @param value New value
+     *
+     * @return Boolean representing whether the value was replaced or not
+     */
+    public boolean replace(long key, V expected, V value) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            int slot = stripe.indexOf(key);
+            if (slot < 0 || stripe.values[slot] != expected)
+                return false;
+
+            stripe.values[slot] = value;
+            return true;
+        }
+    }
+
+    /**
+     * Removes the value of a chunk
+     *
+     * @param key Key of the chunk
+     *
+     * @return Removed value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == 0) return null;
+
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            int slot = stripe.indexOf(key);
+            if (slot < 0)
+                return null;
+
+            V previous = (V) stripe.values[slot];
+            stripe.removeAt(slot);
+            return previous;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Removes every chunk from the index
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.removeAll();
+            }
+        }
+    }
+
+    /**
+     * @return Snapshot of the keys of every chunk on the index
+     */
+    public long[] keys() {
+        long[] snapshot = new long[0];
+
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (snapshot.length < n + stripe.size)
+                    snapshot = Arrays.copyOf(snapshot, n + stripe.size);
+
+                for (long key : stripe.keys) {
+                    if (key != 0)
+                        snapshot[n++] = key;
+                }
+            }
+        }
+
+        return n == snapshot.length ? snapshot : Arrays.copyOf(snapshot, n);
+    }
+
+    /**
+     * @return Snapshot of the values of every chunk on the index
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> snapshot = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.keys.length; i++) {
+                    if (stripe.keys[i] != 0)
+                        snapshot.add((V) stripe.values[i]);
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Selects the stripe of a key, from the upper bits of its hash, as the lower ones select its slot on the stripe
+     */
+    private Stripe stripe(long key) {
+        return stripes[ChunkTable.hash(key) >>> (Integer.SIZE - STRIPE_BITS)];
+    }
+
+    /**
+     * Table holding the chunks of a stripe of the index, guarded by its own monitor
+     */
+    private static class Stripe extends ChunkTable {
+        private Object[] values = new Object[keys.length];
+
+        @Override
+        protected void move(int from, int to) {
+            values[to] = values[from];
+        }
+
+        @Override
+        protected void clear(int slot) {
+            values[slot] = null;
+        }
+
+        @Override
+        protected Object allocate(int capacity) {
+            Object[] oldValues = values;
+            values = new Object[capacity];
+            return oldValues;
+        }
+
+        @Override
+        protected void transfer(Object oldValues, int from, int to) {
+            values[to] = ((Object[]) oldValues)[from];
+        }
+    }
+}
@@ -1,104 +1,118 @@
 package storage;
 
-import peer.Peer;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
 
 /**
  * Class containing the information related to a chunk stored on the peer
  *
- * It is responsible for accessing the content and updating it.
+ * It is responsible for accessing the content and updating it. The replication state is kept in memory, with every
+ * change recorded on the replication journal and reflected on the reclaim index.
+ *
+ * @see ReplicationJournal
+ * @see ReclaimIndex
  */
-public class ChunkInfo implements Comparable<ChunkInfo> {
-    private final File chunkFile;
-    private final File infoFile;
+public class ChunkInfo {
+    private final ChunkStore chunkStore;
+    private final ReplicationJournal journal;
+    private final ReclaimIndex reclaimIndex;
+    private final long key;
+    private final int chunkSize;
 
     private final int replicationDegree;
-    private int redundancy; // Represents the difference between the perceived and desired replication of the chunk
+    private volatile int replication;
+
+    // Set once deleted, after which the key no longer references its file id. Guarded by this
+    private boolean deleted = false;
+
+    // Links of the reclaim index, guarded by it
+    ReclaimIndex.Bucket bucket;
+    ChunkInfo prev, next;
 
     /**
      * Constructor handling the initial information of a chunk and storing it appropriately
      *
-     * @param fileId Id of the file
-     * @param chunkNo Id of the chunk
+     * @param chunkStore Segment store holding the contents of the chunk
+     * @param journal Journal recording the replication state of the chunk
+     * @param reclaimIndex Eviction index the chunk is kept on while stored
+     * @param key Key of the chunk
      * @param replication Perceived replication of the chunk
      * @param replicationDegree Desired replication of the chunk
+     * @param digest Digest of the contents of the chunk
      * @param body Contents of the chunk
      *
      * @throws IOException on failure to write data on disk
      */
-    public ChunkInfo(String fileId, int chunkNo, int replication, int replicationDegree, byte[] body) throws IOException {
-        this.chunkFile = new File("./peer" + Peer.getId() + "/backup/" + fileId + "/chk" + chunkNo);
-        this.chunkFile.getParentFile().mkdirs();
-        this.chunkFile.createNewFile();
-
-        this.infoFile = new File("./peer" + Peer.getId() + "/info/" + fileId + "/chk" + chunkNo);
-        this.infoFile.getParentFile().mkdirs();
-        this.infoFile.createNewFile();
+    public ChunkInfo(ChunkStore chunkStore, ReplicationJournal journal, ReclaimIndex reclaimIndex, long key,
+                     int replication, int replicationDegree, byte[] digest, ByteBuffer body) throws IOException {
+        this(chunkStore, journal, reclaimIndex, key, body.remaining(), replication, replicationDegree);
 
-        synchronized (chunkFile) {
-            try (FileOutputStream fos = new FileOutputStream(chunkFile)) {
-                fos.write(body);
-            }
-        }
+        chunkStore.put(key, replicationDegree, digest, body);
+        journal.update(getFileId(), getChunkNo(), replication, replicationDegree);
+    }
 
-        synchronized (infoFile) {
-            try (PrintWriter pw = new PrintWriter(infoFile)) {
-                pw.println(replication + " " + replicationDegree);
-            }
+    /**
+     * Constructor for a chunk sharing the contents of another chunk already stored, which aren't written again
+     *
+     * @param chunkStore Segment store holding the contents of the chunk
+     * @param journal Journal recording the replication state of the chunk
+     * @param reclaimIndex Eviction index the chunk is kept on while stored
+     * @param key Key of the chunk
+     * @param replication Perceived replication of the chunk
+     * @param replicationDegree Desired replication of the chunk
+     * @param source Information about the chunk whose contents are shared
+     *
+     * @throws IOException on failure to write data on disk, or if the source chunk is no longer stored
+     */
+    public ChunkInfo(ChunkStore chunkStore, ReplicationJournal journal, ReclaimIndex reclaimIndex, long key,
+                     int replication, int replicationDegree, ChunkInfo source) throws IOException {
+        this(chunkStore, journal, reclaimIndex, key, source.chunkSize, replication, replicationDegree);
 
-            this.replicationDegree = replicationDegree;
-            this.setRedundancy(replication - replicationDegree);
-        }
+        if (chunkStore.link(key, replicationDegree, source.key) < 0)
+            throw new IOException("Chunk no longer stored");
+        journal.update(getFileId(), getChunkNo(), replication, replicationDegree);
     }
 
     /**
-     * Increments the perceived replication of this chunk
+     * Constructor for a chunk recovered at startup, whose contents are already on the store
      *
-     * @throws IOException on failure to update data on disk
+     * @param chunkStore Segment store holding the contents of the chunk
+     * @param journal Journal recording the replication state of the chunk
+     * @param reclaimIndex Eviction index the chunk is kept on while stored
+     * @param key Key of the chunk
+     * @param chunkSize Size of the chunk, in bytes
+     * @param replication Perceived replication of the chunk
+     * @param replicationDegree Desired replication of the chunk
      */
-    public void incReplication() throws IOException {
-        synchronized (infoFile) {
-            int replication, desired;
-
-            try (Scanner s = new Scanner(infoFile)) {
-                replication = s.nextInt() + 1;
-                desired = s.nextInt();
-            }
+    ChunkInfo(ChunkStore chunkStore, ReplicationJournal journal, ReclaimIndex reclaimIndex, long key, int chunkSize,
+              int replication, int replicationDegree) {
+        this.chunkStore = chunkStore;
+        this.journal = journal;
+        this.reclaimIndex = reclaimIndex;
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.replicationDegree = replicationDegree;
+        this.replication = replication;
+    }
 
-            this.setRedundancy(replication - desired);
+    /**
+     * Increments the perceived replication of this chunk
+     */
+    public synchronized void incReplication() {
+        if (deleted) return;
 
-            try (PrintWriter pw = new PrintWriter(infoFile)) {
-                pw.println(replication + " " + desired);
-            }
-        }
+        journal.update(getFileId(), getChunkNo(), ++replication, replicationDegree);
+        reclaimIndex.update(this);
     }
 
     /**
      * Decrements the perceived replication of this chunk
-     *
-     * @throws IOException on failure to update data on disk
      */
-    public void decReplication() throws IOException {
-        int replication, desired;
-
-        synchronized (infoFile) {
-            try (Scanner s = new Scanner(infoFile)) {
-                replication = s.nextInt() - 1;
-                desired = s.nextInt();
-            }
-
-            this.setRedundancy(replication - desired);
+    public synchronized void decReplication() {
+        if (deleted) return;
 
-            try (PrintWriter pw = new PrintWriter(infoFile)) {
-                pw.println(replication + " " + desired);
-            }
-        }
+        journal.update(getFileId(), getChunkNo(), --replication, replicationDegree);
+        reclaimIndex.update(this);
     }
 
     /**
@@ -106,74 +120,81 @@ public class ChunkInfo implements Comparable<ChunkInfo> {
      *
      * @return Binary content of the chunk
      *
+     * @throws CorruptedChunkException if the contents don't match their checksum
      * @throws IOException on failure to read the data from disk
      */
     public byte[] getChunk() throws IOException {
-        synchronized (chunkFile) {
-            try (FileInputStream fis = new FileInputStream(chunkFile)) {
-                byte[] body = new byte[Math.toIntExact(chunkFile.length())];
-                fis.read(body);
-                return body;
-            }
-        }
+        byte[] body = chunkStore.get(key);
+        if (body == null)
+            throw new IOException("Chunk no longer stored");
+
+        return body;
     }
 
     /**
      * Deletes the data of this chunk on disk
+     *
+     * @return Boolean representing whether the contents were freed, or are still shared with other chunks
+     */
+    public synchronized boolean delete() {
+        this.deleted = true;
+        this.journal.remove(getFileId(), getChunkNo());
+        return this.chunkStore.remove(key);
+    }
+
+    /**
+     * Retrieves the state of this chunk, as shown by the state of the peer and written on checkpoints
+     *
+     * @return State of the chunk, or null if it was deleted
      */
-    public void delete() {
-        this.chunkFile.delete();
-        this.infoFile.delete();
+    synchronized StorageState.ChunkState getState() {
+        if (deleted) return null;
+
+        return new StorageState.ChunkState(getFileId(), getChunkNo(), chunkSize, replication, replicationDegree);
     }
 
     /**
      * Retrieves the perceived replication of this chunk
      *
      * @return Perceived replication of the chunk
+     */
+    public int getReplication() {
+        return replication;
+    }
+
+    /**
+     * Retrieves the difference between the perceived and desired replication of this chunk
      *
-     * @throws IOException on failure to read the data from disk
+     * @return Redundancy of the chunk
      */
-    public int getReplication() throws IOException {
-        synchronized (infoFile) {
-            try (Scanner s = new Scanner(infoFile)) {
-                return s.nextInt();
-            }
-        }
+    public int getRedundancy() {
+        return replication - replicationDegree;
     }
 
-    public synchronized int getRedundancy() {
-        return redundancy;
+    long getKey() {
+        return key;
     }
 
-    public synchronized void setRedundancy(int redundancy) {
-        this.redundancy = redundancy;
+    public String getFileId() {
+        return ChunkKey.fileId(key);
     }
 
-    public double getChunkSize() {
-        synchronized (chunkFile) {
-            return chunkFile.length() / 1000d;
-        }
+    public int getChunkNo() {
+        return ChunkKey.chunkNo(key);
     }
 
-    public int getReplicationDegree() {
-        return replicationDegree;
+    public double getChunkSize() {
+        return chunkSize / 1000d;
     }
 
     /**
-     * Compares two stored chunks to determine the deletion priority during a storage reclaim
-     *
-     * @param o ChunkInfo being compared
-     *
-     * @return Comparison between this and the target ChunkInfo
-     *
-     * @see Comparable
+     * @return Size of the chunk, in bytes
      */
-    @Override
-    public synchronized int compareTo(ChunkInfo o) {
-        int r1 = this.getRedundancy(), r2 = o.getRedundancy();
+    int getLength() {
+        return chunkSize;
+    }
 
-        if      (r1 > r2)   return -1;
-        else if (r1 < r2)   return 1;
-        else                return Integer.compare(o.replicationDegree, this.replicationDegree);
+    public int getReplicationDegree() {
+        return replicationDegree;
     }
 }
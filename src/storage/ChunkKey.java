@@ -0,0 +1,182 @@
+package storage;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Packs the identification of a chunk into a single long, used as key by the chunk indexes
+ *
+ * File ids are interned to int handles, starting at 1, which make up the upper half of the key. The lower half is the
+ * chunk number. A key of 0 therefore never identifies a chunk.
+ *
+ * Handles are reference counted: every entry of a chunk table holds a reference to the handle of its key, as does
+ * every key built by {@link #of}, until released. A handle is freed along with its file id once its last reference
+ * is released, and reused by later file ids in the order they were freed.
+ *
+ * @see ChunkIndex
+ * @see ChunkCounters
+ */
+public final class ChunkKey {
+    private static final ConcurrentHashMap<String, Handle> handles = new ConcurrentHashMap<>();
+    private static volatile Handle[] entries = new Handle[64]; // Indexed by handle, guarded by ChunkKey.class
+    private static final ArrayDeque<Integer> freeHandles = new ArrayDeque<>(); // Guarded by ChunkKey.class
+    private static int nextHandle = 1; // Guarded by ChunkKey.class
+
+    private ChunkKey() {
+    }
+
+    /**
+     * Builds the key of a chunk, interning its file id if needed
+     *
+     * The key holds a reference to the file id's handle, to be released once the key is stored on the chunk tables
+     * that need it, or dropped.
+     * @see #release(long)
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     *
+     * @return Key of the chunk
+     */
+    public static long of(String fileId, int chunkNo) {
+        return pack(acquire(fileId), chunkNo);
+    }
+
+    /**
+     * Builds the key of a chunk without interning its file id nor referencing its handle
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     *
+     * @return Key of the chunk, or 0 if the file id isn't interned, in which case no index holds the chunk
+     */
+    public static long find(String fileId, int chunkNo) {
+        Handle handle = handles.get(fileId);
+        return handle == null ? 0 : pack(handle.handle, chunkNo);
+    }
+
+    /**
+     * Retrieves the interned handle of a file id
+     *
+     * @param fileId Id of the file
+     *
+     * @return Handle of the file id, or 0 if it isn't interned
+     */
+    public static int handle(String fileId) {
+        Handle handle = handles.get(fileId);
+        return handle == null ? 0 : handle.handle;
+    }
+
+    public static int handle(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Retrieves the file id of a key, which must be referenced by the caller or by a chunk table
+     *
+     * @param key Key of the chunk
+     *
+     * @return Id of the file
+     */
+    public static String fileId(long key) {
+        Handle handle = entries[handle(key)];
+        return handle == null ? null : handle.fileId;
+    }
+
+    public static int chunkNo(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Adds a reference to the handle of a key, which must already be referenced by the caller
+     *
+     * @param key Key of the chunk
+     */
+    static void retain(long key) {
+        Handle.REFERENCES.incrementAndGet(entries[handle(key)]);
+    }
+
+    /**
+     * Releases a reference to the handle of a key, freeing the handle if it was the last one
+     *
+     * @param key Key of the chunk
+     */
+    public static void release(long key) {
+        Handle handle = entries[handle(key)];
+        if (Handle.REFERENCES.decrementAndGet(handle) > 0)
+            return;
+
+        synchronized (ChunkKey.class) {
+            // A concurrent acquire of the file id may have revived the handle meanwhile
+            if (!Handle.REFERENCES.compareAndSet(handle, 0, -1))
+                return;
+
+            handles.remove(handle.fileId);
+            entries[handle.handle] = null;
+            freeHandles.add(handle.handle);
+        }
+    }
+
+    /**
+     * Interns a file id if needed, adding a reference to its handle
+     *
+     * @param fileId Id of the file
+     *
+     * @return Handle of the file id
+     */
+    private static int acquire(String fileId) {
+        Handle handle = handles.get(fileId);
+        if (handle != null && handle.acquire())
+            return handle.handle;
+
+        synchronized (ChunkKey.class) {
+            handle = handles.get(fileId);
+            if (handle != null && handle.acquire())
+                return handle.handle;
+
+            Integer free = freeHandles.poll();
+            int value = free != null ? free : nextHandle++;
+            if (value == entries.length)
+                entries = Arrays.copyOf(entries, 2 * entries.length);
+
+            handle = new Handle(fileId, value);
+            entries[value] = handle;
+            handles.put(fileId, handle);
+            return value;
+        }
+    }
+
+    private static long pack(int handle, int chunkNo) {
+        return (long) handle << 32 | (chunkNo & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Interned file id, with the number of references to its handle, or -1 once freed
+     */
+    private static class Handle {
+        private static final AtomicIntegerFieldUpdater<Handle> REFERENCES =
+                AtomicIntegerFieldUpdater.newUpdater(Handle.class, "references");
+
+        private final String fileId;
+        private final int handle;
+        private volatile int references = 1;
+
+        private Handle(String fileId, int handle) {
+            this.fileId = fileId;
+            this.handle = handle;
+        }
+
+        /**
+         * Adds a reference to this handle, unless it was already freed
+         */
+        private boolean acquire() {
+            for (int references = this.references; references >= 0; references = this.references) {
+                if (REFERENCES.compareAndSet(this, references, references + 1))
+                    return true;
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package storage;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background scrubber checking the contents of the stored chunks against their checksums
+ *
+ * The scrubber walks the distinct contents of the store over and over, reading each one once however many chunks share
+ * it, and at most a configured number of bytes per second so that it doesn't compete with the foreground protocols
+ * for the disk. Every chunk sharing corrupted contents is dropped and announced with REMOVED, so that the peers
+ * holding healthy replicas back them up again.
+ *
+ * @see ChunkStore#verify(byte[])
+ */
+class ChunkScrubber extends Thread {
+    private static final long PASS_INTERVAL = 60;
+
+    private final StorageManager storageManager;
+    private final ChunkStore chunkStore;
+    private final long rate;
+
+    /**
+     * Constructor creating the scrubber of a store
+     *
+     * @param storageManager Storage of the peer, which drops the corrupted chunks
+     * @param chunkStore Store being scrubbed
+     * @param rate Maximum rate at which the store is read, in bytes per second
+     */
+    ChunkScrubber(StorageManager storageManager, ChunkStore chunkStore, long rate) {
+        super("chunk-scrubber");
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+
+        this.storageManager = storageManager;
+        this.chunkStore = chunkStore;
+        this.rate = rate;
+    }
+
+    /**
+     * Implements the Thread behavior, endlessly checking every chunk on the store and pausing between passes
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (byte[] digest : chunkStore.digests()) {
+                    try {
+                        int length = chunkStore.verify(digest);
+                        if (length > 0)
+                            TimeUnit.NANOSECONDS.sleep(length * 1_000_000_000L / rate);
+                    } catch (CorruptedChunkException e) {
+                        for (Map.Entry<String, Integer> chunk : chunkStore.chunksOf(digest))
+                            storageManager.dropCorruptedChunk(chunk.getKey(), chunk.getValue());
+                    }
+                }
+
+                TimeUnit.SECONDS.sleep(PASS_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package storage;
+
+import java.util.Arrays;
+
+/**
+ * Set of the chunk numbers of a file stored on the peer, used as the per file index of the stored chunks
+ *
+ * The chunk numbers are kept packed on an array, along with an open addressing table from each chunk number to its
+ * position on the array, so that adding and removing a chunk take constant time. A removed chunk is replaced by the
+ * last one on the array.
+ *
+ * This class isn't thread-safe, it is guarded by the lock of its owner.
+ */
+class ChunkSet {
+    private int[] chunkNos = new int[8];
+    private int size = 0;
+
+    // Positions of the chunks on the array plus one, with linear probing, or 0 for empty slots
+    private int[] slots = new int[16];
+
+    /**
+     * Adds a chunk to the set. The chunk must not be on the set already
+     *
+     * @param chunkNo Id of the chunk
+     */
+    void add(int chunkNo) {
+        if (size == chunkNos.length)
+            chunkNos = Arrays.copyOf(chunkNos, 2 * size);
+        chunkNos[size++] = chunkNo;
+
+        if (2 * size > slots.length)
+            rehash(2 * slots.length);
+        else
+            slots[freeSlot(chunkNo)] = size;
+    }
+
+    /**
+     * Removes a chunk from the set
+     *
+     * @param chunkNo Id of the chunk
+     */
+    void remove(int chunkNo) {
+        int slot = slotOf(chunkNo);
+        if (slot < 0) return;
+
+        int position = slots[slot] - 1;
+        deleteSlot(slot);
+
+        int last = --size;
+        if (position != last) {
+            chunkNos[position] = chunkNos[last];
+            slots[slotOf(chunkNos[position])] = position + 1;
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int i) {
+        return chunkNos[i];
+    }
+
+    /**
+     * @return Slot of a chunk on the table, or -1 if it isn't on the set
+     */
+    private int slotOf(int chunkNo) {
+        int mask = slots.length - 1;
+        for (int slot = hash(chunkNo) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (chunkNos[slots[slot] - 1] == chunkNo)
+                return slot;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return First empty slot from the home slot of a chunk
+     */
+    private int freeSlot(int chunkNo) {
+        int mask = slots.length - 1;
+        int slot = hash(chunkNo) & mask;
+        while (slots[slot] != 0)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    /**
+     * Empties a slot, shifting back the entries that probed past it so that they can still be found
+     */
+    private void deleteSlot(int slot) {
+        int mask = slots.length - 1;
+        for (int next = (slot + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+            int home = hash(chunkNos[slots[next] - 1]) & mask;
+
+            // The entry stays put if its home slot lies cyclically after the emptied slot, up to its own slot
+            if (slot <= next ? slot < home && home <= next : slot < home || home <= next)
+                continue;
+
+            slots[slot] = slots[next];
+            slot = next;
+        }
+
+        slots[slot] = 0;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int i = 0; i < size; i++)
+            slots[freeSlot(chunkNos[i])] = i + 1;
+    }
+
+    private static int hash(int chunkNo) {
+        int h = chunkNo * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
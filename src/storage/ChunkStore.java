@@ -0,0 +1,859 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, content-addressed segment store holding the contents of the chunks stored on the peer
+ *
+ * Chunk contents are stored once per SHA-256 digest, as blobs referenced by every chunk with the same contents. Blobs
+ * and references are appended as records to fixed capacity segment files, which are memory mapped so that reading a
+ * chunk doesn't open any file. A blob is only freed once no chunk references it. The space left by freed records is
+ * reclaimed by a background compaction, which moves the live records of mostly empty segments to the active one.
+ *
+ * Blob records are laid out as [CHECKED_BLOB][length][crc][digest][body] and reference records as
+ * [REF][chunkNo][replicationDegree][fileId][digest], so the index can be rebuilt from the segments alone when the peer
+ * restarts. The CRC32C of the body is checked on every read, and by the scrubber, so that corrupted contents are never
+ * served.
+ */
+public class ChunkStore {
+    private static final int SEGMENT_CAPACITY = 64 * 1024 * 1024;
+    private static final byte REF = 2, CHECKED_BLOB = 3;
+    private static final int FILE_ID_SIZE = 64, DIGEST_SIZE = 32;
+    private static final int CHECKED_BLOB_HEADER_SIZE = 1 + 2 * Integer.BYTES + DIGEST_SIZE;
+    private static final int REF_SIZE = 1 + 2 * Integer.BYTES + FILE_ID_SIZE + DIGEST_SIZE;
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final long COMPACTION_PERIOD = 30;
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final File directory;
+    private final ChunkIndex<Ref> index = new ChunkIndex<>();
+    private final HashMap<ByteBuffer, Blob> blobs = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chunk-store-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Segment activeSegment;
+    private int nextSegmentId;
+
+    // Segments written since the last sync, guarded by this. Syncs are serialized on syncLock
+    private final Set<Segment> dirtySegments = new HashSet<>();
+    private final Object syncLock = new Object();
+    private volatile long size = 0;
+
+    /**
+     * Constructor opening a segment store on the given directory
+     *
+     * The index is rebuilt from the segments already on the directory, while new records are always appended to a new
+     * segment.
+     *
+     * @param directory Directory containing the segment files
+     *
+     * @throws IOException on failure to open the existing segments or to create the first segment
+     */
+    public ChunkStore(File directory) throws IOException {
+        this.directory = directory;
+        this.directory.mkdirs();
+
+        File[] existing = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        if (existing != null && existing.length > 0)
+            recover(existing);
+
+        this.activeSegment = newSegment();
+        this.compactor.scheduleWithFixedDelay(this::compact, COMPACTION_PERIOD, COMPACTION_PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Computes the digest under which the contents of a chunk are stored
+     *
+     * @param body Contents of the chunk
+     *
+     * @return SHA-256 digest of the contents
+     */
+    public static byte[] digest(ByteBuffer body) {
+        MessageDigest digest = sha256.get();
+        digest.update(body.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Computes the digest of the given contents preceded by a prefix byte, as done for the nodes of a Merkle tree
+     *
+     * @param prefix Byte telling apart the kinds of nodes
+     * @param body Contents of the node
+     *
+     * @return SHA-256 digest of the prefix and the contents
+     */
+    static byte[] digest(byte prefix, ByteBuffer body) {
+        MessageDigest digest = sha256.get();
+        digest.update(prefix);
+        digest.update(body.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Checks whether contents with the given digest are already on the store
+     *
+     * @param digest Digest of the contents
+     *
+     * @return Boolean representing whether adding a chunk with these contents takes no additional space
+     */
+    public synchronized boolean contains(byte[] digest) {
+        return blobs.containsKey(ByteBuffer.wrap(digest));
+    }
+
+    /**
+     * Adds a chunk to the store, writing its contents only if no other chunk has the same contents
+     *
+     * @param key Key of the chunk
+     * @param replicationDegree Desired replication degree of the chunk, kept for recovery
+     * @param digest Digest of the contents, as computed by digest
+     * @param body Contents of the chunk
+     *
+     * @return Boolean representing whether the contents were written or were already on the store
+     *
+     * @throws IOException on failure to create a new segment
+     */
+    public synchronized boolean put(long key, int replicationDegree, byte[] digest, ByteBuffer body)
+            throws IOException {
+        Blob blob = blobs.get(ByteBuffer.wrap(digest));
+        boolean written = blob == null;
+
+        if (written) {
+            int crc = checksum(body);
+            blob = new Blob(digest, crc, appendBlob(digest, crc, body.duplicate()));
+            blobs.put(ByteBuffer.wrap(digest), blob);
+            size += blob.length();
+        }
+
+        blob.references++;
+        Ref previous = index.put(key, new Ref(blob, appendRef(key, replicationDegree, digest)));
+        if (previous != null)
+            release(previous);
+
+        return written;
+    }
+
+    /**
+     * Stores a chunk with the same contents as a chunk already on the store, without writing them again
+     *
+     * @param key Key of the chunk
+     * @param replicationDegree Desired replication degree of the chunk
+     * @param source Key of the chunk whose contents are shared
+     *
+     * @return Size of the chunk, or -1 if the source chunk isn't on the store
+     *
+     * @throws IOException on failure to create a new segment
+     */
+    public synchronized int link(long key, int replicationDegree, long source) throws IOException {
+        Ref ref = index.get(source);
+        if (ref == null)
+            return -1;
+
+        Blob blob = ref.blob;
+        blob.references++;
+        Ref previous = index.put(key, new Ref(blob, appendRef(key, replicationDegree, blob.digest)));
+        if (previous != null)
+            release(previous);
+
+        return blob.length();
+    }
+
+    /**
+     * Retrieves the contents of a chunk, read from the mapped segment holding it and checked against their checksum
+     *
+     * @param key Key of the chunk
+     *
+     * @return Contents of the chunk, or null if the chunk isn't on the store
+     *
+     * @throws CorruptedChunkException if the contents don't match their checksum
+     */
+    public byte[] get(long key) throws CorruptedChunkException {
+        Ref ref = index.get(key);
+        if (ref == null)
+            return null;
+
+        ByteBuffer body = ref.blob.body();
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+
+        if (checksum(ByteBuffer.wrap(bytes)) != ref.blob.crc)
+            throw new CorruptedChunkException(ChunkKey.fileId(key), ChunkKey.chunkNo(key));
+
+        return bytes;
+    }
+
+    /**
+     * Checks contents on the store against their checksum, covering every chunk sharing them at once
+     *
+     * @param digest Digest of the contents
+     *
+     * @return Size of the contents, or -1 if they are no longer on the store
+     *
+     * @throws CorruptedChunkException if the contents don't match their checksum
+     */
+    public int verify(byte[] digest) throws CorruptedChunkException {
+        Blob blob;
+        synchronized (this) {
+            blob = blobs.get(ByteBuffer.wrap(digest));
+        }
+        if (blob == null)
+            return -1;
+
+        if (checksum(blob.body()) != blob.crc)
+            throw new CorruptedChunkException(digest);
+
+        return blob.length();
+    }
+
+    /**
+     * Writes the contents of a chunk to a channel, straight from its segment file
+     *
+     * The contents are checked against their checksum first. If their segment is closed by a compaction meanwhile,
+     * the transfer resumes once from their new location.
+     *
+     * @param key Key of the chunk
+     * @param target Channel the contents are written to
+     *
+     * @return Boolean representing whether the chunk is stored
+     *
+     * @throws CorruptedChunkException if the contents don't match their checksum
+     * @throws IOException on failure to write the contents
+     */
+    public boolean transferTo(long key, WritableByteChannel target) throws IOException {
+        Ref ref = index.get(key);
+        if (ref == null)
+            return false;
+
+        Location location = ref.blob.location;
+        if (checksum(Blob.body(location)) != ref.blob.crc)
+            throw new CorruptedChunkException(ChunkKey.fileId(key), ChunkKey.chunkNo(key));
+
+        long transferred = 0;
+        for (boolean retried = false; ; retried = true) {
+            long start = location.offset + CHECKED_BLOB_HEADER_SIZE, length = location.size - CHECKED_BLOB_HEADER_SIZE;
+            try {
+                while (transferred < length)
+                    transferred += location.segment.channel.transferTo(start + transferred, length - transferred,
+                            target);
+
+                return true;
+            } catch (ClosedChannelException e) {
+                // The contents were moved before their segment was closed, unless the target was the one closed
+                if (retried || location.segment.channel.isOpen())
+                    throw e;
+            }
+
+            ref = index.get(key);
+            if (ref == null)
+                return false;
+            location = ref.blob.location;
+        }
+    }
+
+    /**
+     * @return Keys of every chunk on the store
+     */
+    public long[] keys() {
+        return index.keys();
+    }
+
+    /**
+     * @return Snapshot of the digests of the distinct contents on the store
+     */
+    public synchronized List<byte[]> digests() {
+        List<byte[]> digests = new ArrayList<>(blobs.size());
+        for (Blob blob : blobs.values())
+            digests.add(blob.digest);
+
+        return digests;
+    }
+
+    /**
+     * Finds every chunk referencing the given contents
+     *
+     * The file ids are resolved while the chunks are still on the store, as the handles of their keys may be freed
+     * and reused by other files once the chunks are removed.
+     *
+     * @param digest Digest of the contents
+     *
+     * @return File id and chunk number of each chunk with these contents
+     */
+    public synchronized List<Map.Entry<String, Integer>> chunksOf(byte[] digest) {
+        List<Map.Entry<String, Integer>> chunks = new ArrayList<>();
+        for (long key : index.keys()) {
+            Ref ref = index.get(key);
+            if (ref != null && Arrays.equals(ref.blob.digest, digest))
+                chunks.add(Map.entry(ChunkKey.fileId(key), ChunkKey.chunkNo(key)));
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Retrieves the size of a chunk
+     *
+     * @param key Key of the chunk
+     *
+     * @return Size of the chunk, or -1 if the chunk isn't on the store
+     */
+    public int getLength(long key) {
+        Ref ref = index.get(key);
+        return ref == null ? -1 : ref.blob.length();
+    }
+
+    /**
+     * Retrieves the desired replication degree a chunk was stored with
+     *
+     * @param key Key of the chunk
+     *
+     * @return Desired replication degree of the chunk, or -1 if the chunk isn't on the store
+     */
+    public int getReplicationDegree(long key) {
+        Ref ref = index.get(key);
+        return ref == null ? -1 : ref.record.segment.buffer.getInt(ref.record.offset + 1 + Integer.BYTES);
+    }
+
+    /**
+     * @return Size of the distinct contents on the store, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Removes a chunk from the store. The space it occupies is reclaimed on a later compaction
+     *
+     * @param key Key of the chunk
+     *
+     * @return Boolean representing whether the contents of the chunk were freed or are still referenced
+     */
+    public synchronized boolean remove(long key) {
+        Ref ref = index.remove(key);
+        return ref != null && release(ref);
+    }
+
+    /**
+     * Closes the store, stopping its compaction. The segments are kept on the directory for the next run
+     *
+     * @throws IOException on failure to close the segment files
+     */
+    public synchronized void close() throws IOException {
+        compactor.shutdownNow();
+
+        for (Segment segment : segments)
+            segment.channel.close();
+    }
+
+    /**
+     * Drops a reference to a blob, freeing the blob once it is no longer referenced
+     *
+     * @param ref Dropped reference
+     *
+     * @return Boolean representing whether the blob was freed or not
+     */
+    private boolean release(Ref ref) {
+        ref.record.release();
+        if (--ref.blob.references > 0)
+            return false;
+
+        blobs.remove(ByteBuffer.wrap(ref.blob.digest));
+        ref.blob.location.release();
+        size -= ref.blob.length();
+        return true;
+    }
+
+    /**
+     * Appends a blob record to the active segment
+     *
+     * @param digest Digest of the contents
+     * @param crc Checksum of the contents, kept as it is when a blob is moved so that corruption isn't hidden
+     * @param body Contents of the blob
+     *
+     * @return Location of the new record
+     *
+     * @throws IOException on failure to create a new segment
+     */
+    private Location appendBlob(byte[] digest, int crc, ByteBuffer body) throws IOException {
+        Location location = allocate(CHECKED_BLOB_HEADER_SIZE + body.remaining());
+        location.record().put(CHECKED_BLOB).putInt(body.remaining()).putInt(crc).put(digest).put(body);
+        return location;
+    }
+
+    /**
+     * Appends a reference record to the active segment
+     *
+     * @param key Key of the chunk
+     * @param replicationDegree Desired replication degree of the chunk
+     * @param digest Digest of the referenced contents
+     *
+     * @return Location of the new record
+     *
+     * @throws IOException on failure to create a new segment
+     */
+    private Location appendRef(long key, int replicationDegree, byte[] digest) throws IOException {
+        Location location = allocate(REF_SIZE);
+
+        ByteBuffer record = location.record();
+        record.put(REF).putInt(ChunkKey.chunkNo(key)).putInt(replicationDegree);
+
+        String fileId = ChunkKey.fileId(key);
+        for (int i = 0; i < FILE_ID_SIZE; i++)
+            record.put((byte) fileId.charAt(i));
+
+        record.put(digest);
+        return location;
+    }
+
+    /**
+     * Forces the records written so far to disk
+     *
+     * A caller waiting for another one's sync finds the segments it wrote already forced, so concurrent syncs are
+     * committed together, while new records are still written.
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            List<Segment> dirty;
+            synchronized (this) {
+                if (dirtySegments.isEmpty()) return;
+
+                dirty = new ArrayList<>(dirtySegments);
+                dirtySegments.clear();
+            }
+
+            for (Segment segment : dirty)
+                segment.buffer.force();
+        }
+    }
+
+    /**
+     * Reserves space for a record on the active segment, rolling over to a new segment when it is full
+     *
+     * @param recordSize Size of the record
+     *
+     * @return Location of the record
+     *
+     * @throws IOException on failure to create a new segment
+     */
+    private Location allocate(int recordSize) throws IOException {
+        if (activeSegment.writePosition + recordSize > SEGMENT_CAPACITY)
+            activeSegment = newSegment();
+
+        Segment segment = activeSegment;
+        Location location = new Location(segment, segment.writePosition, recordSize);
+        dirtySegments.add(segment);
+
+        segment.writePosition += recordSize;
+        segment.liveBytes.addAndGet(recordSize);
+
+        return location;
+    }
+
+    /**
+     * Creates and maps a new empty segment
+     *
+     * @return The new segment
+     *
+     * @throws IOException on failure to create the segment file
+     */
+    private synchronized Segment newSegment() throws IOException {
+        Segment segment = new Segment(new File(directory, (nextSegmentId++) + ".seg"), true);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Compacts the segments whose space is mostly taken by freed records
+     *
+     * The live records of every such segment are found in a single pass over the blobs and the index, and appended to
+     * the active segment one at a time. The moved records are forced to disk before any old segment file is deleted,
+     * so that a crash never loses chunks already acknowledged. A segment is only deleted once it holds no live record.
+     */
+    private void compact() {
+        Set<Segment> candidates = new HashSet<>();
+        List<Blob> liveBlobs = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment != activeSegment &&
+                        segment.liveBytes.get() < segment.writePosition * (1 - COMPACTION_THRESHOLD))
+                    candidates.add(segment);
+            }
+            if (candidates.isEmpty()) return;
+
+            for (Blob blob : blobs.values()) {
+                if (candidates.contains(blob.location.segment))
+                    liveBlobs.add(blob);
+            }
+        }
+
+        List<Long> liveRefs = new ArrayList<>();
+        for (long key : index.keys()) {
+            Ref ref = index.get(key);
+            if (ref != null && candidates.contains(ref.record.segment))
+                liveRefs.add(key);
+        }
+
+        try {
+            // Records are checked again as they are moved, since they may have been freed or moved meanwhile
+            for (Blob blob : liveBlobs) {
+                synchronized (this) {
+                    if (blob.references == 0 || !candidates.contains(blob.location.segment)) continue;
+
+                    Location moved = appendBlob(blob.digest, blob.crc, blob.body());
+                    blob.location.release();
+                    blob.location = moved;
+                }
+            }
+
+            for (long key : liveRefs) {
+                synchronized (this) {
+                    Ref ref = index.get(key);
+                    if (ref == null || !candidates.contains(ref.record.segment)) continue;
+
+                    Location moved = allocate(REF_SIZE);
+                    moved.record().put(ref.record.record());
+                    ref.record.release();
+                    ref.record = moved;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Chunk store compaction failed: " + e.getMessage());
+        }
+
+        sync();
+
+        synchronized (this) {
+            for (Segment segment : candidates) {
+                if (segment.liveBytes.get() != 0) continue;
+
+                try {
+                    segments.remove(segment);
+                    segment.close();
+                } catch (IOException e) {
+                    System.err.println("Chunk store compaction failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from the segments left by a previous run, scanning them in parallel
+     *
+     * The latest reference of each chunk is kept, and blobs no longer referenced are freed. Segments without any record
+     * are deleted.
+     *
+     * @param files Segment files
+     *
+     * @throws IOException on failure to open a segment
+     */
+    private void recover(File[] files) throws IOException {
+        Arrays.sort(files, Comparator.comparingInt(ChunkStore::segmentId));
+
+        List<Segment> recovered = new ArrayList<>();
+        for (File file : files)
+            recovered.add(new Segment(file, false));
+
+        List<List<Record>> records = recovered.parallelStream()
+                .map(ChunkStore::scan)
+                .collect(Collectors.toList());
+
+        ChunkIndex<Record> refs = new ChunkIndex<>();
+        for (int i = 0; i < recovered.size(); i++) {
+            Segment segment = recovered.get(i);
+            if (segment.writePosition == 0) {
+                segment.close();
+                continue;
+            }
+
+            segments.add(segment);
+            for (Record record : records.get(i)) {
+                if (record.kind == CHECKED_BLOB) {
+                    Blob blob = blobs.get(ByteBuffer.wrap(record.digest));
+                    if (blob == null) {
+                        blobs.put(ByteBuffer.wrap(record.digest), new Blob(record.digest, record.crc, record.location));
+                    } else {
+                        blob.location.release();
+                        blob.location = record.location;
+                        blob.crc = record.crc;
+                    }
+                } else {
+                    Record previous = refs.put(record.key, record);
+                    if (previous != null)
+                        previous.location.release();
+                }
+            }
+        }
+
+        for (long key : refs.keys()) {
+            Record record = refs.get(key);
+
+            Blob blob = blobs.get(ByteBuffer.wrap(record.digest));
+            if (blob == null) {
+                record.location.release();
+                continue;
+            }
+
+            blob.references++;
+            index.put(key, new Ref(blob, record.location));
+        }
+
+        // The keys of the scanned references are only kept by the index from now on
+        refs.clear();
+        for (List<Record> segmentRecords : records) {
+            for (Record record : segmentRecords) {
+                if (record.kind == REF)
+                    ChunkKey.release(record.key);
+            }
+        }
+
+        blobs.values().removeIf(blob -> {
+            if (blob.references > 0) {
+                size += blob.length();
+                return false;
+            }
+
+            blob.location.release();
+            return true;
+        });
+
+        nextSegmentId = segmentId(files[files.length - 1]) + 1;
+    }
+
+    /**
+     * Scans the records of a segment, stopping at the first invalid record, where it was being written when the peer
+     * stopped
+     *
+     * @param segment Segment being scanned
+     *
+     * @return Records of the segment, in the order they were written
+     */
+    private static List<Record> scan(Segment segment) {
+        List<Record> records = new ArrayList<>();
+        ByteBuffer buffer = segment.buffer.duplicate();
+        byte[] fileId = new byte[FILE_ID_SIZE];
+
+        int offset = 0;
+        while (offset + CHECKED_BLOB_HEADER_SIZE <= SEGMENT_CAPACITY) {
+            buffer.position(offset);
+            byte kind = buffer.get();
+
+            Record record;
+            if (kind == CHECKED_BLOB) {
+                int length = buffer.getInt();
+                if (length < 0 || length > SEGMENT_CAPACITY - offset - CHECKED_BLOB_HEADER_SIZE)
+                    break;
+
+                int crc = buffer.getInt();
+                byte[] digest = new byte[DIGEST_SIZE];
+                buffer.get(digest);
+                record = new Record(CHECKED_BLOB, 0, digest, crc,
+                        new Location(segment, offset, CHECKED_BLOB_HEADER_SIZE + length));
+            } else if (kind == REF && offset + REF_SIZE <= SEGMENT_CAPACITY) {
+                int chunkNo = buffer.getInt(), replicationDegree = buffer.getInt();
+                buffer.get(fileId);
+                if (chunkNo < 0 || replicationDegree <= 0 || !isHex(fileId))
+                    break;
+
+                byte[] digest = new byte[DIGEST_SIZE];
+                buffer.get(digest);
+                long key = ChunkKey.of(new String(fileId, StandardCharsets.US_ASCII), chunkNo);
+                record = new Record(REF, key, digest, 0, new Location(segment, offset, REF_SIZE));
+            } else {
+                break;
+            }
+
+            records.add(record);
+            offset += record.location.size;
+            segment.liveBytes.addAndGet(record.location.size);
+        }
+
+        segment.writePosition = offset;
+        return records;
+    }
+
+    /**
+     * Computes the checksum of the contents of a blob
+     *
+     * @param body Contents of the blob
+     *
+     * @return CRC32C of the contents
+     */
+    private static int checksum(ByteBuffer body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static boolean isHex(byte[] fileId) {
+        for (byte b : fileId) {
+            if ((b < '0' || b > '9') && (b < 'a' || b > 'f'))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int segmentId(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(0, name.length() - 4));
+    }
+
+    /**
+     * Segment file, mapped in its full capacity
+     */
+    private static class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger liveBytes = new AtomicInteger();
+        private int writePosition = 0;
+
+        Segment(File file, boolean create) throws IOException {
+            this.file = file;
+            this.channel = create ?
+                    FileChannel.open(file.toPath(),
+                            StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                    FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_CAPACITY);
+        }
+
+        void close() throws IOException {
+            channel.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Location of a record inside a segment
+     */
+    private static class Location {
+        private final Segment segment;
+        private final int offset, size;
+
+        Location(Segment segment, int offset, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        /**
+         * @return View over the record, positioned at its start
+         */
+        ByteBuffer record() {
+            ByteBuffer record = segment.buffer.duplicate();
+            record.position(offset);
+            record.limit(offset + size);
+            return record.slice();
+        }
+
+        /**
+         * Marks this record as garbage
+         */
+        void release() {
+            segment.liveBytes.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Contents shared by every chunk with the same digest
+     */
+    private static class Blob {
+        private final byte[] digest;
+        private volatile Location location;
+        private volatile int crc;
+        private int references = 0;
+
+        Blob(byte[] digest, int crc, Location location) {
+            this.digest = digest;
+            this.crc = crc;
+            this.location = location;
+        }
+
+        int length() {
+            Location location = this.location;
+            return location.size - CHECKED_BLOB_HEADER_SIZE;
+        }
+
+        /**
+         * @return Read-only view over the contents of the blob
+         */
+        ByteBuffer body() {
+            return body(location);
+        }
+
+        /**
+         * @return Read-only view over the contents of the blob record at the given location
+         */
+        static ByteBuffer body(Location location) {
+            ByteBuffer body = location.segment.buffer.asReadOnlyBuffer();
+            body.position(location.offset + CHECKED_BLOB_HEADER_SIZE);
+            body.limit(location.offset + location.size);
+            return body.slice();
+        }
+    }
+
+    /**
+     * Reference of a chunk to its contents, along with the record holding it
+     */
+    private static class Ref {
+        private final Blob blob;
+        private Location record;
+
+        Ref(Blob blob, Location record) {
+            this.blob = blob;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Record found while scanning a segment
+     */
+    private static class Record {
+        private final byte kind;
+        private final long key;
+        private final byte[] digest;
+        private final int crc;
+        private final Location location;
+
+        Record(byte kind, long key, byte[] digest, int crc, Location location) {
+            this.kind = kind;
+            this.key = key;
+            this.digest = digest;
+            this.crc = crc;
+            this.location = location;
+        }
+    }
+}
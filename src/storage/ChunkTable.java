@@ -0,0 +1,141 @@
+package storage;
+
+/**
+ * Open addressing hash table keyed by chunk keys, leaving the storage of the values to its subclasses
+ *
+ * Collisions are resolved by linear probing, and removals shift the following entries back instead of leaving
+ * tombstones. The key 0 marks an empty slot, which is never a valid chunk key. Every entry holds a reference to the
+ * file handle of its key, released when the entry is removed.
+ *
+ * @see ChunkKey
+ */
+abstract class ChunkTable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    protected long[] keys = new long[INITIAL_CAPACITY];
+    protected int size = 0;
+
+    /**
+     * Finds the slot of a key
+     *
+     * @param key Key of the chunk
+     *
+     * @return Slot holding the key, or -(slot + 1) for the empty slot where it would be inserted
+     */
+    protected int indexOf(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) return i;
+            if (keys[i] == 0) return -(i + 1);
+        }
+    }
+
+    /**
+     * Inserts a key on the empty slot returned by indexOf, growing the table if needed
+     *
+     * The key must be referenced by the caller, the table adding its own reference.
+     *
+     * @param slot Encoded empty slot, as returned by indexOf
+     * @param key Key of the chunk
+     *
+     * @return Slot of the inserted key
+     */
+    protected int insert(int slot, long key) {
+        if (2 * (size + 1) > keys.length) {
+            resize(2 * keys.length);
+            slot = indexOf(key);
+        }
+
+        slot = -(slot + 1);
+        keys[slot] = key;
+        size++;
+        ChunkKey.retain(key);
+        return slot;
+    }
+
+    /**
+     * Removes the entry on a slot, shifting back the entries of the same probe sequence
+     *
+     * @param slot Slot of the entry
+     */
+    protected void removeAt(int slot) {
+        int mask = keys.length - 1;
+        long key = keys[slot];
+
+        for (int next = (slot + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+
+            boolean reachable = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if (!reachable) {
+                keys[slot] = keys[next];
+                move(next, slot);
+                slot = next;
+            }
+        }
+
+        keys[slot] = 0;
+        clear(slot);
+        size--;
+        ChunkKey.release(key);
+    }
+
+    /**
+     * Removes every entry, shrinking the table back to its initial capacity
+     */
+    protected void removeAll() {
+        for (long key : keys) {
+            if (key != 0)
+                ChunkKey.release(key);
+        }
+
+        keys = new long[INITIAL_CAPACITY];
+        allocate(INITIAL_CAPACITY);
+        size = 0;
+    }
+
+    /**
+     * Rehashes every entry into a table of the given capacity
+     *
+     * @param capacity New capacity, a power of two
+     */
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        keys = new long[capacity];
+        Object oldValues = allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+
+            int slot = -(indexOf(oldKeys[i]) + 1);
+            keys[slot] = oldKeys[i];
+            transfer(oldValues, i, slot);
+        }
+    }
+
+    /**
+     * Moves the value on a slot to another slot of the same table
+     */
+    protected abstract void move(int from, int to);
+
+    /**
+     * Clears the value on a slot
+     */
+    protected abstract void clear(int slot);
+
+    /**
+     * Allocates the values of a table of the given capacity
+     *
+     * @return Previous array of values
+     */
+    protected abstract Object allocate(int capacity);
+
+    /**
+     * Transfers a value from the previous array of values to the newly allocated one
+     */
+    protected abstract void transfer(Object oldValues, int from, int to);
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,26 @@
+package storage;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * Exception signaling a chunk whose contents don't match the digest or checksum recorded for them
+ */
+public class CorruptedChunkException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     */
+    public CorruptedChunkException(String fileId, int chunkNo) {
+        super("Corrupted chunk " + chunkNo + " of " + fileId);
+    }
+
+    /**
+     * @param digest Digest of the contents shared by the corrupted chunks
+     */
+    public CorruptedChunkException(byte[] digest) {
+        super("Corrupted contents " + String.format("%064x", new BigInteger(1, digest)));
+    }
+}
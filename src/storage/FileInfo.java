@@ -1,33 +1,56 @@
 package storage;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class containing the information related to a file backed up by this peer
  *
+ * The SHA-256 digest of each chunk, prefixed by [0], is recorded as the chunk is backed up. The digests are the leaves
+ * of a Merkle tree whose root identifies the contents of the whole file, each inner node being the digest of
+ * [1][left][right] and an odd node being carried up as it is. The prefixes keep a leaf from passing as an inner node.
+ * A restored chunk is checked against its own digest, and a later version of the file can be compared against this
+ * one chunk by chunk. The root itself is informational, shown on the state of the peer so that users can tell whether
+ * two backed up files have the same contents; the peer doesn't verify it.
  */
 public class FileInfo {
-    private static final int CHUNK_SIZE = 64000;
+    static final int CHUNK_SIZE = 64000;
+    private static final byte LEAF = 0, NODE = 1;
 
     private final int chunkNum; // Number of chunks
     private final int replicationDegree;
     private final AtomicIntegerArray replication;
+    private final AtomicReferenceArray<byte[]> chunkDigests;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Void>> replicationWaiters = new ConcurrentHashMap<>();
     private final File file;
+    private final long fileLength;
+    private final boolean compressed;
+    private volatile byte[] merkleRoot;
 
     /**
      * Constructor initializing the file information
      *
      * @param file File class of the file
      * @param replicationDegree Desired replication of the file
+     * @param compressed Whether the chunks of the file are compressed
+     * @see ChunkCompressor
      */
-    public FileInfo(File file, int replicationDegree) {
-        this.chunkNum = Math.toIntExact(file.length() / CHUNK_SIZE + 1);
+    public FileInfo(File file, int replicationDegree, boolean compressed) {
+        this.fileLength = file.length();
+        this.chunkNum = Math.toIntExact(fileLength / CHUNK_SIZE + 1);
         this.replicationDegree = replicationDegree;
         this.replication = new AtomicIntegerArray(chunkNum);
+        this.chunkDigests = new AtomicReferenceArray<>(chunkNum);
         this.file = file;
+        this.compressed = compressed;
     }
 
     /**
@@ -36,11 +59,37 @@ public class FileInfo {
      * @param chunkNo Id of the chunk
      */
     public void incReplication(int chunkNo) {
-        if (chunkNo < this.replication.length()) {
-            this.replication.incrementAndGet(chunkNo);
+        if (chunkNo < this.replication.length() &&
+                this.replication.incrementAndGet(chunkNo) >= this.replicationDegree) {
+            CompletableFuture<Void> waiter = replicationWaiters.remove(chunkNo);
+            if (waiter != null)
+                waiter.complete(null);
         }
     }
 
+    /**
+     * Retrieves a future completed once a chunk reaches the desired replication degree
+     *
+     * Cancelling the future discards it, so callers giving up on the chunk should cancel it.
+     *
+     * @param chunkNo Id of the chunk
+     *
+     * @return Future completed once the chunk reaches the desired replication
+     */
+    public CompletableFuture<Void> awaitReplication(int chunkNo) {
+        CompletableFuture<Void> waiter = replicationWaiters.computeIfAbsent(chunkNo, (key) -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.whenComplete((result, e) -> replicationWaiters.remove(chunkNo, future));
+            return future;
+        });
+
+        // The chunk may have been replicated before the waiter was registered
+        if (this.getReplication(chunkNo) >= this.replicationDegree)
+            waiter.complete(null);
+
+        return waiter;
+    }
+
     /**
      * Decrements the perceived replication of a chunk
      *
@@ -53,22 +102,36 @@ public class FileInfo {
     }
 
     /**
-     * Seperates the file into chunks to be backed up individually
+     * Opens a read-only channel over the file, to be used for streaming its chunks
      *
-     * @return List of chunks
+     * @return Channel over the file contents
+     *
+     * @throws IOException on failure to open the file
+     */
+    public FileChannel openChannel() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Reads a single chunk of the file, so that only the chunks being backed up need to be kept in memory
+     *
+     * @param channel Channel over the file, opened with openChannel
+     * @param chunkNo Id of the chunk
+     *
+     * @return Contents of the chunk
      *
      * @throws IOException on failure to read the file
      */
-    public byte[][] retrieveChunks() throws IOException {
-        byte[][] chunks = new byte[chunkNum][CHUNK_SIZE];
-        chunks[chunkNum - 1] = new byte[Math.toIntExact(file.length() % CHUNK_SIZE)];
+    public byte[] retrieveChunk(FileChannel channel, int chunkNo) throws IOException {
+        long position = (long) chunkNo * CHUNK_SIZE;
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.max(0, Math.min(CHUNK_SIZE, fileLength - position)));
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            for (byte[] chunk : chunks)
-                fis.read(chunk);
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, position + chunk.position()) < 0)
+                throw new IOException("File was truncated during backup");
         }
 
-        return chunks;
+        return chunk.array();
     }
 
     /**
@@ -82,10 +145,96 @@ public class FileInfo {
         return this.replication.get(chunkNo);
     }
 
+    /**
+     * Hashes a chunk of the file as a leaf of the Merkle tree, recording its digest
+     *
+     * @param chunkNo Id of the chunk
+     * @param chunk Contents of the chunk
+     *
+     * @return Digest of the chunk
+     */
+    public byte[] hashChunk(int chunkNo, byte[] chunk) {
+        byte[] digest = ChunkStore.digest(LEAF, ByteBuffer.wrap(chunk));
+        chunkDigests.set(chunkNo, digest);
+        return digest;
+    }
+
+    /**
+     * Checks a restored chunk against its recorded digest. Chunks without a recorded digest can't be checked
+     *
+     * @param chunkNo Id of the chunk
+     * @param chunk Contents of the chunk
+     *
+     * @return Boolean representing whether the chunk matches its digest or not
+     */
+    public boolean verifyChunk(int chunkNo, byte[] chunk) {
+        byte[] digest = chunkDigests.get(chunkNo);
+        return digest == null || MessageDigest.isEqual(digest, ChunkStore.digest(LEAF, ByteBuffer.wrap(chunk)));
+    }
+
+    /**
+     * Combines the digests of every chunk into the Merkle root of the file, once every chunk is hashed
+     *
+     * @return Merkle root of the file, or null if some chunk wasn't hashed
+     */
+    public byte[] computeMerkleRoot() {
+        byte[][] level = new byte[chunkNum][];
+        for (int i = 0; i < chunkNum; i++) {
+            level[i] = chunkDigests.get(i);
+            if (level[i] == null)
+                return null;
+        }
+
+        int width = chunkNum;
+        while (width > 1) {
+            int parents = (width + 1) / 2;
+            for (int i = 0; i < parents; i++) {
+                if (2 * i + 1 == width) {
+                    level[i] = level[2 * i];
+                    continue;
+                }
+
+                ByteBuffer node = ByteBuffer.allocate(2 * level[0].length);
+                node.put(level[2 * i]).put(level[2 * i + 1]).flip();
+                level[i] = ChunkStore.digest(NODE, node);
+            }
+            width = parents;
+        }
+
+        merkleRoot = level[0];
+        return merkleRoot;
+    }
+
+    /**
+     * @return Merkle root of the contents of the file, or null if it wasn't fully backed up
+     */
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    /**
+     * Retrieves the SHA-256 digest of the contents of a chunk
+     *
+     * @param chunkNo Id of the chunk
+     *
+     * @return Digest of the chunk, or null if the chunk wasn't read
+     */
+    public byte[] getChunkDigest(int chunkNo) {
+        return chunkDigests.get(chunkNo);
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
     public int getChunkNum() {
         return chunkNum;
     }
 
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     public int getReplicationDegree() {
         return replicationDegree;
     }
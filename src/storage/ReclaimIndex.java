@@ -0,0 +1,147 @@
+package storage;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Eviction index of the stored chunks, ordering them by their deletion priority during a storage reclaim
+ *
+ * Chunks are kept in buckets of equal redundancy and desired replication degree, the most redundant chunks with the
+ * highest desired replication degree being deleted first. Chunks move between buckets as their perceived replication
+ * changes, so a reclaim only has to take the first chunk of the first bucket.
+ *
+ * Each bucket is a list linked through the chunks themselves, so moving a chunk doesn't allocate. Buckets keep their
+ * size, so the chunks below their desired replication degree are counted without going through them.
+ */
+public class ReclaimIndex {
+    private final TreeMap<Long, Bucket> buckets = new TreeMap<>(Comparator.reverseOrder());
+
+    /**
+     * Adds a chunk to the index
+     *
+     * @param chunkInfo Information about the chunk
+     */
+    public synchronized void add(ChunkInfo chunkInfo) {
+        if (chunkInfo.bucket == null)
+            link(chunkInfo);
+    }
+
+    /**
+     * Moves a chunk to the bucket of its current redundancy. Chunks no longer on the index are ignored
+     *
+     * @param chunkInfo Information about the chunk
+     */
+    public synchronized void update(ChunkInfo chunkInfo) {
+        if (chunkInfo.bucket == null || chunkInfo.bucket.key == bucketKey(chunkInfo)) return;
+
+        unlink(chunkInfo);
+        link(chunkInfo);
+    }
+
+    /**
+     * Removes a chunk from the index
+     *
+     * @param chunkInfo Information about the chunk
+     */
+    public synchronized void remove(ChunkInfo chunkInfo) {
+        if (chunkInfo.bucket != null)
+            unlink(chunkInfo);
+    }
+
+    /**
+     * Removes the chunk with the highest deletion priority from the index
+     *
+     * @return Information about the chunk, or null if the index is empty
+     */
+    public synchronized ChunkInfo poll() {
+        Map.Entry<Long, Bucket> first = buckets.firstEntry();
+        if (first == null)
+            return null;
+
+        ChunkInfo chunkInfo = first.getValue().head;
+        unlink(chunkInfo);
+        return chunkInfo;
+    }
+
+    /**
+     * Counts the chunks on the index whose perceived replication is below their desired replication degree
+     *
+     * @return Number of under replicated chunks
+     */
+    public synchronized int countUnderReplicated() {
+        int count = 0;
+        for (Bucket bucket : buckets.tailMap(0L, false).values())
+            count += bucket.size;
+
+        return count;
+    }
+
+    /**
+     * Appends a chunk to the bucket of its current redundancy
+     */
+    private void link(ChunkInfo chunkInfo) {
+        long key = bucketKey(chunkInfo);
+
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(key);
+            buckets.put(key, bucket);
+        }
+
+        chunkInfo.bucket = bucket;
+        chunkInfo.prev = bucket.tail;
+        chunkInfo.next = null;
+
+        if (bucket.tail != null)
+            bucket.tail.next = chunkInfo;
+        else
+            bucket.head = chunkInfo;
+
+        bucket.tail = chunkInfo;
+        bucket.size++;
+    }
+
+    /**
+     * Removes a chunk from its bucket, dropping the bucket once empty
+     */
+    private void unlink(ChunkInfo chunkInfo) {
+        Bucket bucket = chunkInfo.bucket;
+
+        if (chunkInfo.prev != null)
+            chunkInfo.prev.next = chunkInfo.next;
+        else
+            bucket.head = chunkInfo.next;
+
+        if (chunkInfo.next != null)
+            chunkInfo.next.prev = chunkInfo.prev;
+        else
+            bucket.tail = chunkInfo.prev;
+
+        chunkInfo.bucket = null;
+        chunkInfo.prev = chunkInfo.next = null;
+
+        if (--bucket.size == 0)
+            buckets.remove(bucket.key);
+    }
+
+    /**
+     * Builds the bucket key of a chunk, ordered by redundancy and then by desired replication degree
+     */
+    private static long bucketKey(ChunkInfo chunkInfo) {
+        return (long) chunkInfo.getRedundancy() << 32 | chunkInfo.getReplicationDegree();
+    }
+
+    /**
+     * Chunks of equal redundancy and desired replication degree, in the order they were added
+     */
+    static class Bucket {
+        private final long key;
+        private ChunkInfo head, tail;
+        private int size;
+
+        Bucket(long key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package storage;
+
+import multicast.MessageCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Journal of the changes to the replication state of the chunks stored on the peer
+ *
+ * Each change is appended after being applied in memory, as a fixed size binary record holding the absolute state of
+ * the chunk, so replaying a record more than once is harmless. Records are buffered in memory and flushed to disk in
+ * the background, so a crash may lose the last changes. Changes that must survive a crash before being acknowledged,
+ * such as a new stored chunk, are synced to disk first, with concurrent syncs committed together.
+ *
+ * A failed flush keeps the records buffered for the next one. Records that don't fit the buffer meanwhile are dropped
+ * and a checkpoint is forced, as it covers them, with every sync failing until then so that no change is acknowledged
+ * while the journal is missing some.
+ *
+ * The journal is periodically folded into a checkpoint file holding the state of every stored chunk. The journal is
+ * first set aside and a new one started, so that the checkpoint is written without blocking new records, and the old
+ * journal is only deleted once the checkpoint is on disk.
+ *
+ * Records are laid out as [type][fileId][chunkNo][replication][replicationDegree], except for the maximum storage
+ * records, which hold the maximum storage in place of the replication fields.
+ *
+ * On startup, the state left by the previous run is recovered by replaying the journal on top of the checkpoint.
+ */
+public class ReplicationJournal {
+    private static final byte UPDATE = 1, REMOVE = 2, MAX_STORAGE = 3;
+    private static final int FILE_ID_SIZE = 32;
+    private static final int RECORD_SIZE = 1 + FILE_ID_SIZE + 3 * Integer.BYTES;
+    private static final int BUFFER_SIZE = 1024 * RECORD_SIZE;
+    private static final long FLUSH_PERIOD = 100, CHECKPOINT_PERIOD = 60000;
+
+    private final File journalFile, oldJournalFile, checkpointFile;
+    private final Supplier<Collection<StorageState.ChunkState>> chunks;
+    private final DoubleSupplier maxStorage;
+    private final ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "replication-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Replaced when the journal is set aside, guarded by this for writing and by syncLock for forcing
+    private FileChannel journal;
+
+    // Records appended so far, guarded by this, and records known to be on disk, guarded by syncLock
+    private final Object syncLock = new Object();
+    private long appendedRecords = 0, syncedRecords = 0;
+
+    // Records dropped since the last checkpoint, guarded by this
+    private long droppedRecords = 0;
+
+    private final Object checkpointLock = new Object();
+
+    /**
+     * Constructor opening the journal on the given directory, keeping the state left by a previous run
+     *
+     * Nothing is flushed nor checkpointed until the journal is started, so the previous state can be recovered first.
+     *
+     * @param directory Directory holding the journal and checkpoint files
+     * @param chunks Supplier of the state of the stored chunks, written on each checkpoint. Chunks must be
+     *               added and removed along with their records, under a lock also held while copying them
+     * @param maxStorage Supplier of the maximum storage, written on each checkpoint
+     *
+     * @throws IOException on failure to open the journal file
+     */
+    public ReplicationJournal(File directory, Supplier<Collection<StorageState.ChunkState>> chunks,
+                              DoubleSupplier maxStorage)
+            throws IOException {
+        directory.mkdirs();
+
+        this.journalFile = new File(directory, "journal");
+        this.oldJournalFile = new File(directory, "journal.old");
+        this.checkpointFile = new File(directory, "checkpoint");
+        this.chunks = chunks;
+        this.maxStorage = maxStorage;
+        this.journal = openJournal();
+    }
+
+    /**
+     * Starts flushing and checkpointing the journal in the background
+     */
+    public void start() {
+        this.flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+        this.flusher.scheduleWithFixedDelay(this::checkpointQuietly,
+                CHECKPOINT_PERIOD, CHECKPOINT_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Recovers the state left by the previous run, replaying the journal on top of the checkpoint
+     *
+     * A journal set aside by an unfinished checkpoint is replayed before the current one. Its records are never newer
+     * than the current journal's, so replaying it on top of a checkpoint that already covers it is harmless.
+     *
+     * A torn record at the end of the journal, left by a crash during a flush, is ignored. A missing or damaged
+     * checkpoint makes the whole recovery incomplete, as the journal alone doesn't hold the state of every chunk.
+     *
+     * @return Recovered state
+     *
+     * @throws IOException on failure to read the checkpoint or the journal
+     */
+    public synchronized Recovery recover() throws IOException {
+        Recovery recovery = new Recovery();
+
+        recovery.complete = checkpointFile.exists() && replay(checkpointFile, recovery);
+        if (recovery.complete) {
+            if (oldJournalFile.exists())
+                replay(oldJournalFile, recovery);
+            replay(journalFile, recovery);
+        }
+
+        return recovery;
+    }
+
+    /**
+     * Records the current replication state of a chunk
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     * @param replication Perceived replication of the chunk
+     * @param replicationDegree Desired replication of the chunk
+     */
+    public synchronized void update(String fileId, int chunkNo, int replication, int replicationDegree) {
+        append(UPDATE, fileId, chunkNo, replication, replicationDegree);
+    }
+
+    /**
+     * Records the removal of a chunk
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     */
+    public synchronized void remove(String fileId, int chunkNo) {
+        append(REMOVE, fileId, chunkNo, 0, 0);
+    }
+
+    /**
+     * Records a change of the maximum storage
+     *
+     * @param maxStorage New maximum storage, in KBytes
+     */
+    public synchronized void maxStorage(double maxStorage) {
+        append(MAX_STORAGE, maxStorage);
+    }
+
+    /**
+     * Writes the state of every stored chunk to the checkpoint file and starts a new empty journal
+     *
+     * The journal is set aside before the stored chunks are copied, so every record it holds is reflected on the copy,
+     * and the checkpoint is then written without holding the journal, so records keep being appended meanwhile. The
+     * checkpoint is written to a temporary file and atomically renamed, and the old journal is deleted after that, so
+     * a crash at any point leaves a checkpoint and the journals recording every change made since.
+     *
+     * @throws IOException on failure to write the checkpoint
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            // Records dropped so far are reflected on the copy of the stored chunks
+            long dropped;
+            synchronized (this) {
+                dropped = droppedRecords;
+            }
+
+            rotate();
+
+            double maxStorage = this.maxStorage.getAsDouble();
+            Collection<StorageState.ChunkState> chunks = this.chunks.get();
+
+            File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+            try (FileChannel checkpoint = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer records = ByteBuffer.allocate(BUFFER_SIZE);
+                put(records, MAX_STORAGE, maxStorage);
+
+                for (StorageState.ChunkState chunk : chunks) {
+                    if (records.remaining() < RECORD_SIZE)
+                        write(checkpoint, records);
+
+                    put(records, UPDATE, chunk.getFileId(), chunk.getChunkNo(), chunk.getReplication(),
+                            chunk.getReplicationDegree());
+                }
+
+                write(checkpoint, records);
+                checkpoint.force(false);
+            }
+
+            Files.move(tmpFile.toPath(), checkpointFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(oldJournalFile.toPath());
+
+            synchronized (this) {
+                droppedRecords -= dropped;
+            }
+        }
+    }
+
+    /**
+     * Sets the journal aside as the old journal, forced to disk, and starts a new empty journal
+     *
+     * If an old journal is left by a failed checkpoint, the journal is appended to it instead, so that no record is
+     * lost before a checkpoint succeeds.
+     *
+     * @throws IOException on failure to write the old journal or to start the new one
+     */
+    private void rotate() throws IOException {
+        synchronized (syncLock) {
+            FileChannel oldJournal;
+            long written;
+
+            synchronized (this) {
+                write(journal, pending);
+                written = appendedRecords;
+
+                if (!oldJournalFile.exists()) {
+                    Files.move(journalFile.toPath(), oldJournalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    oldJournal = journal;
+                    journal = openJournal();
+                } else {
+                    oldJournal = FileChannel.open(oldJournalFile.toPath(), StandardOpenOption.WRITE);
+                    oldJournal.truncate(oldJournal.size() - oldJournal.size() % RECORD_SIZE);
+                    oldJournal.position(oldJournal.size());
+
+                    try (FileChannel source = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+                        for (long position = 0; position < source.size(); )
+                            position += source.transferTo(position, source.size() - position, oldJournal);
+                    }
+                    oldJournal.force(false);
+                    journal.truncate(0);
+                }
+            }
+
+            try {
+                oldJournal.force(false);
+            } finally {
+                oldJournal.close();
+            }
+            syncedRecords = written;
+        }
+    }
+
+    /**
+     * Writes the buffered records to the journal file
+     *
+     * @throws IOException on failure to write the journal
+     */
+    public synchronized void flush() throws IOException {
+        write(journal, pending);
+    }
+
+    /**
+     * Makes every record appended so far durable, writing the buffered records and forcing the journal to disk
+     *
+     * Concurrent callers are committed as a group: a caller waiting for another one's force finds its records already
+     * durable, and new records can still be appended while the journal is being forced.
+     *
+     * @throws IOException on failure to write or force the journal, or if records were dropped since the last
+     *                     checkpoint
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            if (droppedRecords > 0)
+                throw new IOException("Replication journal dropped records, waiting for a checkpoint");
+            target = appendedRecords;
+        }
+
+        synchronized (syncLock) {
+            if (syncedRecords >= target) return;
+
+            long written;
+            synchronized (this) {
+                write(journal, pending);
+                written = appendedRecords;
+            }
+
+            journal.force(false);
+            syncedRecords = written;
+        }
+    }
+
+    /**
+     * Stops flushing the journal in the background, checkpointing the current state one last time
+     *
+     * @throws IOException on failure to write the checkpoint
+     */
+    public void close() throws IOException {
+        flusher.shutdownNow();
+        checkpoint();
+
+        synchronized (this) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Appends a record to the in-memory buffer, flushing it first if it is full
+     */
+    private void append(byte type, String fileId, int chunkNo, int replication, int replicationDegree) {
+        appendedRecords++;
+        if (reserve())
+            put(pending, type, fileId, chunkNo, replication, replicationDegree);
+    }
+
+    /**
+     * Appends a maximum storage record to the in-memory buffer, flushing it first if it is full
+     */
+    private void append(byte type, double maxStorage) {
+        appendedRecords++;
+        if (reserve())
+            put(pending, type, maxStorage);
+    }
+
+    /**
+     * Makes room for a record on the in-memory buffer, flushing it if it is full
+     *
+     * If the flush fails, the record is dropped and a checkpoint is forced. Once records are being dropped, the buffer
+     * is left to the background flushes and to the checkpoint, instead of retrying the flush on every record.
+     *
+     * @return Boolean representing whether the record can be appended or was dropped
+     */
+    private boolean reserve() {
+        if (pending.remaining() < RECORD_SIZE && droppedRecords == 0)
+            flushQuietly();
+        if (pending.remaining() >= RECORD_SIZE)
+            return true;
+
+        if (droppedRecords++ == 0) {
+            try {
+                flusher.execute(this::checkpointQuietly);
+            } catch (RejectedExecutionException e) {
+                // The journal is being closed, which checkpoints it
+            }
+        }
+
+        return false;
+    }
+
+    private static void put(ByteBuffer records, byte type, String fileId, int chunkNo, int replication,
+                            int replicationDegree) {
+        records.put(type);
+        for (int i = 0; i < FILE_ID_SIZE; i++)
+            records.put((byte) Integer.parseInt(fileId, 2 * i, 2 * i + 2, 16));
+        records.putInt(chunkNo).putInt(replication).putInt(replicationDegree);
+    }
+
+    private static void put(ByteBuffer records, byte type, double maxStorage) {
+        records.put(type);
+        for (int i = 0; i < FILE_ID_SIZE; i++)
+            records.put((byte) 0);
+        records.putInt(0).putDouble(maxStorage);
+    }
+
+    /**
+     * Replays the records of a file into the recovered state
+     *
+     * @param file Checkpoint or journal file
+     * @param recovery State being recovered
+     *
+     * @return Boolean representing whether every record of the file was valid or not
+     *
+     * @throws IOException on failure to read the file
+     */
+    private static boolean replay(File file, Recovery recovery) throws IOException {
+        ByteBuffer records;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        byte[] fileId = new byte[FILE_ID_SIZE];
+        while (records.remaining() >= RECORD_SIZE) {
+            byte type = records.get();
+            records.get(fileId);
+
+            if (type == MAX_STORAGE) {
+                records.getInt();
+                recovery.maxStorage = records.getDouble();
+                continue;
+            }
+
+            int chunkNo = records.getInt(), replication = records.getInt(), replicationDegree = records.getInt();
+
+            if (type == UPDATE)
+                recovery.chunks.put(MessageCodec.toHex(fileId), chunkNo, new int[] {replication, replicationDegree});
+            else if (type == REMOVE)
+                recovery.chunks.remove(MessageCodec.toHex(fileId), chunkNo);
+            else
+                return false;
+        }
+
+        return !records.hasRemaining();
+    }
+
+    /**
+     * Writes the buffered records to a channel, leaving the buffer empty
+     *
+     * On failure, the records not yet written are kept on the buffer, so that the next write continues from them.
+     *
+     * @param channel Channel to be written
+     * @param records Buffer of records
+     *
+     * @throws IOException on failure to write to the channel
+     */
+    private static void write(FileChannel channel, ByteBuffer records) throws IOException {
+        records.flip();
+        try {
+            while (records.hasRemaining())
+                channel.write(records);
+        } finally {
+            records.compact();
+        }
+    }
+
+    private FileChannel openJournal() throws IOException {
+        return FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private synchronized void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Replication journal flush failed: " + e.getMessage());
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            System.err.println("Replication journal checkpoint failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * State of the stored chunks and of the maximum storage, as left by the previous run of the peer
+     */
+    public static class Recovery {
+        private final ChunkIndex<int[]> chunks = new ChunkIndex<>();
+        private double maxStorage = Double.MAX_VALUE;
+        private boolean complete;
+
+        /**
+         * @return Boolean representing whether the state of every chunk was recovered or not
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Retrieves the recovered replication state of a chunk
+         *
+         * @param key Key of the chunk
+         *
+         * @return Perceived replication and desired replication degree, or null if the chunk wasn't stored
+         */
+        public int[] get(long key) {
+            return chunks.get(key);
+        }
+
+        public int size() {
+            return chunks.size();
+        }
+
+        /**
+         * Drops the recovered state of the chunks, once applied
+         */
+        void clear() {
+            chunks.clear();
+        }
+
+        public double getMaxStorage() {
+            return maxStorage;
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package storage;
 
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Class responsible for managing the restore of chunks
@@ -12,8 +13,19 @@ import java.util.concurrent.ConcurrentHashMap;
  * This is mostly necessary to communicate between the different threads
  */
 public class RestoreManager {
-    private static final ConcurrentHashMap<String, Object> flagMap = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Optional<byte[]>> chunkMap = new ConcurrentHashMap<>();
+    private final StorageManager storageManager;
+
+    private final ChunkIndex<Boolean> flagMap = new ChunkIndex<>();
+    private final ChunkIndex<CompletableFuture<byte[]>> chunkMap = new ChunkIndex<>();
+
+    /**
+     * Constructor of the restore state of a peer
+     *
+     * @param storageManager Storage of the peer, holding the information about the files it backed up
+     */
+    public RestoreManager(StorageManager storageManager) {
+        this.storageManager = storageManager;
+    }
 
     /**
      * Marks a chunk to be restored
@@ -21,8 +33,8 @@ public class RestoreManager {
      * @param fileId Id of the file
      * @param chunkNo Id of the chunk
      */
-    public static void markChunk(String fileId, int chunkNo) {
-        flagMap.putIfAbsent(fileId + chunkNo, new Object());
+    public void markChunk(String fileId, int chunkNo) {
+        flagMap.putIfAbsent(fileId, chunkNo, Boolean.TRUE);
     }
 
     /**
@@ -33,8 +45,8 @@ public class RestoreManager {
      *
      * @return Boolean representing wheather a chunk was marked or not
      */
-    public static boolean checkAndUnMarkChunk(String fileId, int chunkNo) {
-        return flagMap.remove(fileId + chunkNo) != null;
+    public boolean checkAndUnMarkChunk(String fileId, int chunkNo) {
+        return flagMap.remove(fileId, chunkNo) != null;
     }
 
     /**
@@ -43,8 +55,8 @@ public class RestoreManager {
      * @param fileId Id of the file
      * @param chunkNo Id of the chunk
      */
-    public static void unMarkChunk(String fileId, int chunkNo) {
-        flagMap.remove(fileId + chunkNo);
+    public void unMarkChunk(String fileId, int chunkNo) {
+        flagMap.remove(fileId, chunkNo);
     }
 
 
@@ -53,35 +65,68 @@ public class RestoreManager {
      *
      * @param fileId Id of the file
      * @param chunkNo Id of the chunk
+     *
+     * @return Future completed with the contents of the chunk once it arrives
      */
-    public static void addChunk(String fileId, int chunkNo) {
-        chunkMap.put(fileId + chunkNo, Optional.empty());
+    public CompletableFuture<byte[]> requestChunk(String fileId, int chunkNo) {
+        CompletableFuture<byte[]> request = new CompletableFuture<>();
+
+        CompletableFuture<byte[]> existing = chunkMap.putIfAbsent(fileId, chunkNo, request);
+        return existing != null ? existing : request;
     }
 
     /**
      * Stores the contents of a restored chunk if there's a request for it (Initiator Peer)
      *
+     * The contents are only copied when the chunk was requested, and decompressed if the file was backed up with
+     * compression. A chunk failing to decompress is discarded, leaving the request waiting for another reply. A chunk
+     * not matching the digest recorded at backup fails the request instead, so that it is requested again right away.
+     *
      * @param fileId Id of the file
      * @param chunkNo Id of the chunk
      * @param body Binary content of the chunk
      *
      */
-    public static void putChunk(String fileId, int chunkNo, byte[] body) {
-        try {
-            chunkMap.replace(fileId + chunkNo, Optional.of(body));
-        } catch( NullPointerException ignored) {
+    public void putChunk(String fileId, int chunkNo, ByteBuffer body) {
+        if (body == null || !chunkMap.contains(fileId, chunkNo))
+            return;
+
+        byte[] chunk;
+        if (storageManager.isCompressed(fileId)) {
+            try {
+                chunk = ChunkCompressor.decompress(body);
+            } catch (IOException e) {
+                System.err.println("Discarded chunk " + chunkNo + " of " + fileId + ": " + e.getMessage());
+                return;
+            }
+        } else {
+            chunk = new byte[body.remaining()];
+            body.duplicate().get(chunk);
         }
+
+        // Only the first decoded reply takes the request, the later ones being discarded
+        CompletableFuture<byte[]> request = chunkMap.remove(fileId, chunkNo);
+        if (request == null)
+            return;
+
+        if (!storageManager.verifyChunk(fileId, chunkNo, chunk)) {
+            System.err.println("Discarded chunk " + chunkNo + " of " + fileId + ": Corrupted chunk");
+            request.completeExceptionally(new CorruptedChunkException(fileId, chunkNo));
+            return;
+        }
+
+        request.complete(chunk);
     }
 
     /**
-     * Retrieves the contents of a chunk request (Initiator Peer)
+     * Discards a chunk request, for when the restore gives up on the chunk (Initiator Peer)
      *
      * @param fileId Id of the file
      * @param chunkNo Id of the chunk
-     *
-     * @return Binary content of the chunk. If there are no contents, null is returned.
      */
-    public static byte[] retrieveChunk(String fileId, int chunkNo) {
-        return chunkMap.remove(fileId + chunkNo).orElse(null);
+    public void cancelChunk(String fileId, int chunkNo) {
+        CompletableFuture<byte[]> request = chunkMap.remove(fileId, chunkNo);
+        if (request != null)
+            request.cancel(false);
     }
 }
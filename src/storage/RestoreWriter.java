@@ -0,0 +1,99 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writer of a file being restored, accepting its chunks in any order
+ *
+ * The file is restored to a temporary file with the final size, each chunk being written at its own position as soon
+ * as it arrives. Once every chunk is written, the file is atomically renamed to its final location. Closing the writer
+ * without committing discards the temporary file. Every writer has its own temporary file, so concurrent restores of
+ * files with the same name don't mix their chunks, the last one committed replacing the others.
+ *
+ * Once a chunk fails to be restored, the writer is marked as failed so that the workers restoring the other chunks
+ * give up.
+ */
+public class RestoreWriter implements AutoCloseable {
+    private final File tmpFile, file;
+    private final FileChannel channel;
+    private boolean committed = false;
+    private volatile boolean failed = false;
+
+    /**
+     * Constructor creating the temporary file for the restore, preallocated to the size of the file
+     *
+     * @param file Final location of the restored file
+     * @param fileLength Size of the file being restored
+     *
+     * @throws IOException on failure to create the temporary file
+     */
+    RestoreWriter(File file, long fileLength) throws IOException {
+        this.file = file;
+        this.tmpFile = Files.createTempFile(file.getParentFile().toPath(), "." + file.getName() + ".", ".part")
+                .toFile();
+        this.channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE);
+
+        if (fileLength > 0)
+            channel.write(ByteBuffer.allocate(1), fileLength - 1);
+    }
+
+    /**
+     * Writes a chunk at its position on the file. Chunks may be written concurrently and in any order
+     *
+     * @param chunkNo Id of the chunk
+     * @param chunk Binary content of the chunk
+     *
+     * @throws IOException on failure to write the chunk
+     */
+    public void write(int chunkNo, byte[] chunk) throws IOException {
+        long position = (long) chunkNo * FileInfo.CHUNK_SIZE;
+
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+
+    /**
+     * Marks the restore as failed, so that the remaining chunks aren't requested
+     */
+    public void fail() {
+        failed = true;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Finishes the restore, moving the restored file into its final location
+     *
+     * @throws IOException on failure to move the file
+     */
+    public void commit() throws IOException {
+        channel.force(false);
+        channel.close();
+
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    /**
+     * Closes the writer, discarding the temporary file if the restore wasn't committed
+     *
+     * @throws IOException on failure to close the file
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) return;
+
+        channel.close();
+        tmpFile.delete();
+    }
+}
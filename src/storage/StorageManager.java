@@ -1,40 +1,153 @@
 package storage;
 
-import peer.Peer;
+import multicast.Message;
+import multicast.MessageType;
+import peer.PeerContext;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
-import java.util.Comparator;
-import java.util.Objects;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Class responsible for managing the backed up files and the stored chunks.
+ * Class responsible for managing the backed up files and the stored chunks of a peer.
  *
  * The class provides thread-safe methods for performing various actions related to the peer's storage.
  */
 public class StorageManager {
-    private static final ConcurrentHashMap<String, String> idMap = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, FileInfo> fileMap = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, ChunkInfo> chunkMap = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Integer> replicationMap = new ConcurrentHashMap<>();
+    private static final long scrubRate = Long.getLong("peer.scrubRate", 1_000_000);
 
-    private static final Object storageLock = new Object();
-    private static double usedStorage = 0d;
-    private static double maxStorage = Double.MAX_VALUE;
+    private final PeerContext context;
+
+    private final ConcurrentHashMap<String, String> idMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FileInfo> fileMap = new ConcurrentHashMap<>();
+    private final ChunkIndex<ChunkInfo> chunkMap = new ChunkIndex<>();
+    private final HashMap<String, ChunkSet> fileChunks = new HashMap<>(); // Guarded by storageLock
+    private final HashSet<String> deletingFiles = new HashSet<>(); // Guarded by storageLock
+    private final ChunkCounters replicationMap = new ChunkCounters();
+
+    private ChunkStore chunkStore;
+    private ReplicationJournal journal;
+    private ChunkScrubber scrubber;
+    private final ReclaimIndex reclaimIndex = new ReclaimIndex();
+
+    private final Object storageLock = new Object();
+    private double maxStorage = Double.MAX_VALUE;
+
+    // Bumped whenever a chunk is stored or removed, invalidating the sorted chunk keys of the state snapshots
+    private volatile long chunkVersion = 0;
+    private volatile SortedKeys sortedKeys;
 
     /**
-     * Sets up the filesystem architecture used to manage the peer's storage.
+     * Constructor of the storage of a peer, which is only accessed once set up
+     *
+     * @param context Context of the peer
+     */
+    public StorageManager(PeerContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Sets up the filesystem architecture used to manage the peer's storage, under the peer's directory.
+     *
+     * The chunks stored by a previous run of the peer are recovered before this method returns. The stored chunks are
+     * then scrubbed in the background at the rate given by the peer.scrubRate property.
+     *
+     * @throws IOException on failure to open the chunk store or the replication journal
+     */
+    public void storageSetup() throws IOException {
+        long start = System.nanoTime();
+
+        new File(context.getDirectory(), "restored").mkdirs();
+        chunkStore = new ChunkStore(new File(context.getDirectory(), "store"));
+        journal = new ReplicationJournal(new File(context.getDirectory(), "info"), this::copyChunks,
+                this::getMaxStorage);
+
+        ReplicationJournal.Recovery recovery = journal.recover();
+        recoverChunks(recovery);
+        recovery.clear();
+        journal.checkpoint();
+        journal.start();
+
+        if (scrubRate > 0) {
+            scrubber = new ChunkScrubber(this, chunkStore, scrubRate);
+            scrubber.start();
+        }
+
+        if (chunkMap.size() > 0) {
+            System.out.println("Recovered " + chunkMap.size() + " chunks (" + getUsedStorage() + " KBytes) in " +
+                    (System.nanoTime() - start) / 1000000 + " ms.");
+        }
+    }
+
+    /**
+     * Closes the peer's storage, writing out the replication state of the stored chunks
+     */
+    public void close() {
+        if (chunkStore == null) return;
+
+        if (scrubber != null)
+            scrubber.interrupt();
+
+        try {
+            journal.close();
+
+            synchronized (storageLock) {
+                chunkStore.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rebuilds the stored chunks left by a previous run of the peer
+     *
+     * The replication state comes from the checkpoint and journal. Without a valid checkpoint, every chunk found on the
+     * store is kept, with this peer as its only perceived replication.
+     *
+     * @param recovery State recovered from the replication journal
      */
-    public static void storageSetup() {
-        new File("./peer" + Peer.getId() + "/restored").mkdirs();
-        new File("./peer" + Peer.getId() + "/backup").mkdir();
-        new File("./peer" + Peer.getId() + "/info").mkdir();
+    private void recoverChunks(ReplicationJournal.Recovery recovery) {
+        synchronized (storageLock) {
+            this.maxStorage = recovery.getMaxStorage();
+
+            for (long key : chunkStore.keys()) {
+                int replication, replicationDegree;
+
+                if (recovery.isComplete()) {
+                    int[] state = recovery.get(key);
+                    if (state == null) {
+                        chunkStore.remove(key);
+                        continue;
+                    }
+
+                    replication = state[0];
+                    replicationDegree = state[1];
+                } else {
+                    replication = 1;
+                    replicationDegree = chunkStore.getReplicationDegree(key);
+                }
+
+                addChunk(new ChunkInfo(chunkStore, journal, reclaimIndex, key, chunkStore.getLength(key),
+                        replication, replicationDegree));
+            }
+        }
     }
 
     /**
@@ -43,7 +156,7 @@ public class StorageManager {
      * @param path Path of the file
      * @return Boolean representing whether the file was backed up or not.
      */
-    public static boolean isBackedUp(String path) {
+    public boolean isBackedUp(String path) {
         return idMap.containsKey(new File(path).getAbsolutePath());
     }
 
@@ -60,19 +173,19 @@ public class StorageManager {
      *
      * @throws Exception on non existent file or failure to read the file
      */
-    public static String generateFileId(String path, int replicationDegree) throws Exception {
+    public String generateFileId(String path, int replicationDegree) throws Exception {
         File file = new File(path);
         if (!file.exists()) throw new FileNotFoundException();
 
         MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
         byte[] digest = sha256.digest(
-                (file.getAbsolutePath() + file.length() + file.lastModified() + Peer.getId()).getBytes()
+                (file.getAbsolutePath() + file.length() + file.lastModified() + context.getId()).getBytes()
         );
 
         String fileId = String.format("%064x", new BigInteger(1, digest));
 
         idMap.put(file.getAbsolutePath(), fileId);
-        fileMap.put(fileId, new FileInfo(file, replicationDegree));
+        fileMap.put(fileId, new FileInfo(file, replicationDegree, context.isCompressing()));
 
         return fileId;
     }
@@ -84,40 +197,128 @@ public class StorageManager {
      *
      * @return Id of the file
      */
-    public static String getFileId(String path) {
+    public String getFileId(String path) {
         return idMap.get(new File(path).getAbsolutePath());
     }
 
     /**
-     * Restores a file on the Peer restored folder
+     * Hashes a chunk of a file being backed up on the peer's hash pool, so the chunks are hashed in parallel with
+     * the reading of the file
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     * @param chunk Contents of the chunk
+     *
+     * @return Future completed with the digest of the chunk
+     */
+    public CompletableFuture<byte[]> hashFileChunk(String fileId, int chunkNo, byte[] chunk) {
+        FileInfo fileInfo = fileMap.get(fileId);
+        return CompletableFuture.supplyAsync(() -> fileInfo.hashChunk(chunkNo, chunk), context.getHashPool());
+    }
+
+    /**
+     * Combines the digests of the chunks of a backed up file into its Merkle root, once they are all hashed
+     *
+     * @param fileId Id of the file
+     *
+     * @return Merkle root of the file, or null if some chunk wasn't hashed
+     */
+    public byte[] computeMerkleRoot(String fileId) {
+        return fileMap.get(fileId).computeMerkleRoot();
+    }
+
+    /**
+     * Checks a restored chunk against the digest recorded when it was backed up
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     * @param chunk Contents of the chunk
+     *
+     * @return Boolean representing whether the chunk is intact, or can't be checked
+     */
+    public boolean verifyChunk(String fileId, int chunkNo, byte[] chunk) {
+        FileInfo fileInfo = fileMap.get(fileId);
+        return fileInfo == null || fileInfo.verifyChunk(chunkNo, chunk);
+    }
+
+    /**
+     * Indexes the chunks of a backed up file by their digest, to compare a new version of the file against it
+     *
+     * Only chunks that were read and stored by at least one peer are indexed.
+     *
+     * @param fileId Id of the file
+     *
+     * @return Map from the digest of each chunk to its id, empty if the file isn't backed up
+     */
+    public Map<ByteBuffer, Integer> indexChunkDigests(String fileId) {
+        HashMap<ByteBuffer, Integer> chunks = new HashMap<>();
+
+        FileInfo fileInfo = fileId == null ? null : fileMap.get(fileId);
+        if (fileInfo == null)
+            return chunks;
+
+        for (int chunkNo = 0; chunkNo < fileInfo.getChunkNum(); chunkNo++) {
+            byte[] digest = fileInfo.getChunkDigest(chunkNo);
+            if (digest != null && fileInfo.getReplication(chunkNo) > 0)
+                chunks.putIfAbsent(ByteBuffer.wrap(digest), chunkNo);
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Creates a writer for restoring a file on the Peer restored folder
+     * @see RestoreWriter
      *
      * @param path Path of the file
-     * @param chunks Chunks of the file, retrieved previously
+     * @param fileId Id of the file
+     *
+     * @return Writer of the restored file, to which the chunks are written as they arrive
      *
      * @throws IOException on failure to create the restored file
      */
-    public static synchronized void restoreFile(String path, byte[][] chunks) throws IOException {
-        File file = new File("./peer" + Peer.getId() + "/restored/" + new File(path).getName());
-        if (file.exists())  file.delete();
-        file.createNewFile();
+    public RestoreWriter createRestoreWriter(String path, String fileId) throws IOException {
+        File file = new File(context.getDirectory(), "restored/" + new File(path).getName());
+        return new RestoreWriter(file, fileMap.get(fileId).getFileLength());
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            for (byte[] chunk : chunks) {
-                fos.write(chunk);
-            }
-        }
+    /**
+     * Checks whether the chunks of a file backed up by this peer are compressed
+     * @see ChunkCompressor
+     *
+     * @param fileId Id of the file
+     *
+     * @return Boolean representing whether the chunks are compressed or not
+     */
+    public boolean isCompressed(String fileId) {
+        FileInfo fileInfo = fileMap.get(fileId);
+        return fileInfo != null && fileInfo.isCompressed();
     }
 
     /**
-     * Retrives the chunks of a file to be backed up
+     * Opens a channel for streaming the chunks of a file to be backed up
      *
      * @param fileId Id of the file
      *
-     * @return Chunks of the file
-     * @throws IOException on failure to read the chunks
+     * @return Channel over the file contents
+     * @throws IOException on failure to open the file
      */
-    public static byte[][] retrieveFileChunks(String fileId) throws IOException {
-        return fileMap.get(fileId).retrieveChunks();
+    public FileChannel openFileChannel(String fileId) throws IOException {
+        return fileMap.get(fileId).openChannel();
+    }
+
+    /**
+     * Retrieves a single chunk of a file to be backed up
+     *
+     * @param fileId Id of the file
+     * @param channel Channel over the file, opened with openFileChannel
+     * @param chunkNo Id of the chunk
+     *
+     * @return Contents of the chunk
+     * @throws IOException on failure to read the chunk
+     */
+    public byte[] retrieveFileChunk(String fileId, FileChannel channel, int chunkNo) throws IOException {
+        return fileMap.get(fileId).retrieveChunk(channel, chunkNo);
     }
 
     /**
@@ -127,7 +328,7 @@ public class StorageManager {
      *
      * @return Id of the file
      */
-    public static String deleteFile(String path) {
+    public String deleteFile(String path) {
         File file = new File(path);
 
         String fileId = idMap.remove(file.getAbsolutePath());
@@ -137,8 +338,22 @@ public class StorageManager {
         return fileId;
     }
 
+    /**
+     * Deletes the information about a previous version of a file, once its path refers to a newer version (Initiator
+     * peer)
+     *
+     * @param fileId Id of the previous version
+     */
+    public void deleteVersion(String fileId) {
+        if (!idMap.containsValue(fileId))
+            fileMap.remove(fileId);
+    }
+
     /**
      * Stores a chunk, creating all necessary metadata for its management
+     *
+     * The chunk and its replication state are on disk by the time this method returns, so it can be acknowledged with
+     * a STORED message. The sync is done outside the storage lock, so concurrent stores share it.
      * @see ChunkInfo
      *
      * @param fileId Id of the file
@@ -150,45 +365,140 @@ public class StorageManager {
      *
      * @throws IOException on failure to write chunk related files
      */
-    public static boolean storeChunk(String fileId, int chunkNo, int replicationDegree, byte[] body) throws IOException {
-        double chunkSize = body.length / 1000d;
+    public boolean storeChunk(String fileId, int chunkNo, int replicationDegree, ByteBuffer body)
+            throws IOException {
+        double chunkSize = body.remaining() / 1000d;
+        byte[] digest = ChunkStore.digest(body);
 
         synchronized (storageLock) {
-            if (StorageManager.usedStorage + chunkSize > StorageManager.maxStorage) return false;
+            awaitDeletion(fileId);
+            if (!chunkStore.contains(digest) && getUsedStorage() + chunkSize > this.maxStorage)
+                return false;
+
+            long key = ChunkKey.of(fileId, chunkNo);
+            try {
+                if (chunkMap.get(key) != null) return false;
+
+                int replication = getChunkReplication(fileId, chunkNo);
+                addChunk(new ChunkInfo(chunkStore, journal, reclaimIndex, key, replication, replicationDegree,
+                        digest, body));
+                replicationMap.remove(fileId, chunkNo);
+            } finally {
+                ChunkKey.release(key);
+            }
+        }
 
-            int replication = getChunkReplication(fileId, chunkNo);
-            boolean retVal = chunkMap.putIfAbsent(String.join(":", fileId, String.valueOf(chunkNo)),
-                    new ChunkInfo(fileId, chunkNo, replication, replicationDegree, body)) == null;
+        sync();
+        return true;
+    }
 
-            if (retVal) {
-                StorageManager.usedStorage += chunkSize;
-                replicationMap.remove(fileId + chunkNo);
+    /**
+     * Stores a chunk of a new version of a file, sharing the contents of the same chunk of a previous version
+     *
+     * Peers that don't store the previous chunk can't keep it, leaving the initiator to send its contents instead.
+     * As with storeChunk, the kept chunk is on disk by the time this method returns.
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     * @param replicationDegree Desired replication degree for the chunk
+     * @param previousFileId Id of the previous version of the file
+     * @param previousChunkNo Id of the chunk on the previous version
+     *
+     * @return Boolean representing whether the chunk is now stored or not
+     *
+     * @throws IOException on failure to write chunk related files
+     */
+    public boolean keepChunk(String fileId, int chunkNo, int replicationDegree, String previousFileId,
+                                    int previousChunkNo) throws IOException {
+        synchronized (storageLock) {
+            awaitDeletion(fileId);
+            ChunkInfo previous = chunkMap.get(previousFileId, previousChunkNo);
+            if (previous == null)
+                return false;
+
+            long key = ChunkKey.of(fileId, chunkNo);
+            try {
+                if (chunkMap.get(key) == null) {
+                    int replication = getChunkReplication(fileId, chunkNo);
+                    addChunk(new ChunkInfo(chunkStore, journal, reclaimIndex, key, replication, replicationDegree,
+                            previous));
+                    replicationMap.remove(fileId, chunkNo);
+                }
+            } finally {
+                ChunkKey.release(key);
             }
-
-            return retVal;
         }
+
+        sync();
+        return true;
+    }
+
+    /**
+     * Forces the stored chunks and the replication journal to disk, the chunks first so that no record on the journal
+     * refers to contents lost in a crash
+     *
+     * @throws IOException on failure to force the journal
+     */
+    private void sync() throws IOException {
+        chunkStore.sync();
+        journal.sync();
     }
 
     /**
      * Deletes all of the stored chunks from a given file
      *
+     * The chunks are found through the per file index, so the cost is proportional to the chunks of that file only.
+     * The storage lock only covers detaching the chunks from the indexes, while their removal from the journal and the
+     * store happens after it is released. Chunks of the file stored meanwhile wait for the removal to finish. The
+     * perceived replication of the file's chunks stored by other peers is dropped as well.
+     *
      * @param fileId Id of the file
      */
-    public static void deleteChunks(String fileId) {
+    public void deleteChunks(String fileId) {
+        replicationMap.removeFile(fileId);
+
+        List<ChunkInfo> deleted = new ArrayList<>();
         synchronized (storageLock) {
-            for (String key : chunkMap.keySet()) {
-                if (key.split(":")[0].equals(fileId)) {
-                    ChunkInfo chunkInfo = chunkMap.remove(key);
-                    StorageManager.usedStorage -= chunkInfo.getChunkSize();
-                    chunkInfo.delete();
-                }
+            ChunkSet chunks = fileChunks.remove(fileId);
+            if (chunks == null) return;
+
+            for (int i = 0; i < chunks.size(); i++) {
+                ChunkInfo chunkInfo = chunkMap.remove(ChunkKey.find(fileId, chunks.get(i)));
+                reclaimIndex.remove(chunkInfo);
+                deleted.add(chunkInfo);
             }
 
-            StorageManager.maxStorage = Double.max(0d, maxStorage);
+            chunkVersion++;
+            deletingFiles.add(fileId);
         }
 
-        new File("./peer" + Peer.getId() + "/backup/" + fileId).delete();
-        new File("./peer" + Peer.getId() + "/info/" + fileId).delete();
+        try {
+            for (ChunkInfo chunkInfo : deleted)
+                chunkInfo.delete();
+        } finally {
+            synchronized (storageLock) {
+                deletingFiles.remove(fileId);
+                storageLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for the chunks of a file being deleted to be removed, so that a chunk stored again isn't removed along
+     * with them. Must be called holding the storage lock
+     *
+     * @param fileId Id of the file
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private void awaitDeletion(String fileId) throws InterruptedIOException {
+        try {
+            while (deletingFiles.contains(fileId))
+                storageLock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the deletion of " + fileId);
+        }
     }
 
     /**
@@ -198,23 +508,21 @@ public class StorageManager {
      *
      * @param fileId Id of the file
      * @param chunkNo Id of the chunk
-     *
-     * @throws IOException on failure to update the data on disk
      */
-    public static void signalStoreChunk(String fileId, int chunkNo) throws IOException {
+    public void signalStoreChunk(String fileId, int chunkNo) {
         FileInfo fileInfo = fileMap.get(fileId);
         if (fileInfo != null) {
             fileInfo.incReplication(chunkNo);
             return;
         }
 
-        ChunkInfo chunkInfo = chunkMap.get(String.join(":", fileId, String.valueOf(chunkNo)));
+        ChunkInfo chunkInfo = chunkMap.get(fileId, chunkNo);
         if (chunkInfo != null) {
             chunkInfo.incReplication();
             return;
         }
 
-        replicationMap.compute(fileId + chunkNo, (key, currVal) -> currVal != null ? currVal++ : 1);
+        replicationMap.increment(fileId, chunkNo);
     }
 
     /**
@@ -227,23 +535,21 @@ public class StorageManager {
      *
      * @return Information about the deleted chunk
      * @see ChunkInfo
-     *
-     * @throws IOException on failure to update the data on disk
      */
-    public static ChunkInfo signalRemoveChunk(String fileId, int chunkNo) throws IOException {
+    public ChunkInfo signalRemoveChunk(String fileId, int chunkNo) {
         FileInfo fileInfo = fileMap.get(fileId);
         if (fileInfo != null) {
             fileInfo.decReplication(chunkNo);
             return null;
         }
 
-        ChunkInfo chunkInfo = chunkMap.get(String.join(":", fileId, String.valueOf(chunkNo)));
+        ChunkInfo chunkInfo = chunkMap.get(fileId, chunkNo);
         if (chunkInfo != null) {
             chunkInfo.decReplication();
             return chunkInfo;
         }
 
-        replicationMap.compute(fileId + chunkNo, (key, currVal) -> currVal != null ? currVal-- : 0);
+        replicationMap.decrement(fileId, chunkNo);
         return null;
     }
 
@@ -255,13 +561,29 @@ public class StorageManager {
      *
      * @return Perceived replication of the chunk
      */
-    public static int getChunkReplication(String fileId, int chunkNo) {
+    public int getChunkReplication(String fileId, int chunkNo) {
         FileInfo fileInfo = fileMap.get(fileId);
         if (fileInfo != null) {
             return fileInfo.getReplication(chunkNo);
         }
 
-        return replicationMap.computeIfAbsent(fileId + chunkNo, (key) -> 0);
+        return replicationMap.get(fileId, chunkNo);
+    }
+
+    /**
+     * Retrieves a future completed once a chunk of a file backed up by this peer reaches its desired replication degree
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     *
+     * @return Future completed once the chunk is replicated. It never completes if the file is no longer backed up.
+     */
+    public CompletableFuture<Void> awaitChunkReplication(String fileId, int chunkNo) {
+        FileInfo fileInfo = fileMap.get(fileId);
+        if (fileInfo == null)
+            return new CompletableFuture<>();
+
+        return fileInfo.awaitReplication(chunkNo);
     }
 
     /**
@@ -271,7 +593,7 @@ public class StorageManager {
      *
      * @return Number of chunks for that file
      */
-    public static int getChunkNum(String fileId) {
+    public int getChunkNum(String fileId) {
         return fileMap.get(fileId).getChunkNum();
     }
 
@@ -283,8 +605,8 @@ public class StorageManager {
      *
      * @return Boolean representing wheather this peer has a chunk stored or not
      */
-    public static boolean hasChunk(String fileId, int chunkNo) {
-        return chunkMap.containsKey(String.join(":", fileId, String.valueOf(chunkNo)));
+    public boolean hasChunk(String fileId, int chunkNo) {
+        return chunkMap.contains(fileId, chunkNo);
     }
 
     /**
@@ -296,108 +618,281 @@ public class StorageManager {
      * @return Binary Content of the chunk
      * @throws IOException on failure to read the contents
      */
-    public static byte[] getChunk(String fileId, int chunkNo) throws IOException {
-        return chunkMap.get(String.join(":", fileId, String.valueOf(chunkNo))).getChunk();
+    public byte[] getChunk(String fileId, int chunkNo) throws IOException {
+        ChunkInfo chunkInfo = chunkMap.get(fileId, chunkNo);
+        if (chunkInfo == null)
+            throw new IOException("Chunk no longer stored");
+
+        try {
+            return chunkInfo.getChunk();
+        } catch (CorruptedChunkException e) {
+            dropCorruptedChunk(fileId, chunkNo);
+            throw e;
+        }
     }
 
     /**
-     * Retrives the current state of the peer storage
+     * Retrieves the size of a stored chunk
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
      *
-     * @return Current state of the peer storage in a human readable manner
-     * @throws IOException on failure to retrieve data on disk
+     * @return Size of the chunk, in bytes, or -1 if the chunk isn't stored
      */
-    public static synchronized String getState() throws IOException {
-        StringBuilder stateInfo =
-                new StringBuilder("Peer(" + Peer.getId() + ") - Current State" + System.lineSeparator());
+    public int getChunkLength(String fileId, int chunkNo) {
+        return chunkStore.getLength(ChunkKey.find(fileId, chunkNo));
+    }
 
-        stateInfo.append("- Backed up Files:")
-                .append(System.lineSeparator())
-                .append(System.lineSeparator());
+    /**
+     * Writes the contents of a stored chunk to a channel, without copying them to the heap
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     * @param target Channel the contents are written to
+     *
+     * @return Boolean representing whether the chunk is stored
+     * @throws IOException on failure to write the contents
+     */
+    public boolean transferChunk(String fileId, int chunkNo, WritableByteChannel target) throws IOException {
+        try {
+            return chunkStore.transferTo(ChunkKey.find(fileId, chunkNo), target);
+        } catch (CorruptedChunkException e) {
+            dropCorruptedChunk(fileId, chunkNo);
+            throw e;
+        }
+    }
 
-        for (String path : idMap.keySet()) {
+    /**
+     * Drops a stored chunk whose contents are corrupted, announcing it so that it is backed up again from the healthy
+     * replicas
+     *
+     * @param fileId Id of the file
+     * @param chunkNo Id of the chunk
+     */
+    void dropCorruptedChunk(String fileId, int chunkNo) {
+        synchronized (storageLock) {
+            ChunkInfo chunkInfo = chunkMap.get(fileId, chunkNo);
+            if (chunkInfo == null) return;
+
+            removeChunk(chunkInfo);
+            chunkInfo.delete();
+        }
+
+        System.err.println("Dropped corrupted chunk " + chunkNo + " of " + fileId);
+        context.mc.sendMessage(new Message(MessageType.REMOVED, context.getProtocolVersion(), context.getId(), fileId,
+                chunkNo, 0));
+    }
+
+    /**
+     * Retrieves a snapshot of the peer storage, with a page of its backed up files and of its stored chunks
+     *
+     * The snapshot is built from the in-memory state alone, without holding the storage lock while going through the
+     * chunks. Files are ordered by path and chunks by file and chunk number, the sorted chunk keys being cached until
+     * a chunk is stored or removed. The filter keeps the files whose path contains it or whose id starts with it, and
+     * the chunks whose file id starts with it.
+     *
+     * @param filter Filter of the files and chunks, or null to keep every one of them
+     * @param offset Number of matching files, and of matching chunks, skipped before the page
+     * @param limit Maximum number of files, and of chunks, on the page
+     *
+     * @return Snapshot of the peer storage
+     */
+    public StorageState getState(String filter, int offset, int limit) {
+        offset = Math.max(0, offset);
+        limit = Math.max(0, limit);
+
+        List<String> paths = new ArrayList<>(idMap.keySet());
+        Collections.sort(paths);
+
+        int fileCount = 0;
+        List<StorageState.FileState> files = new ArrayList<>();
+        for (String path : paths) {
             String fileId = idMap.get(path);
-            FileInfo fileInfo = fileMap.get(fileId);
-
-            stateInfo.append("  - File Path: ")
-                    .append(path)
-                    .append(System.lineSeparator())
-                    .append("  - File Id: ")
-                    .append(fileId)
-                    .append(System.lineSeparator())
-                    .append("  - Desired Replication Degree: ")
-                    .append(fileInfo.getReplicationDegree())
-                    .append(System.lineSeparator());
-
-            for (int i = 0; i < fileInfo.getChunkNum(); i++) {
-                stateInfo.append("    - Chunk ")
-                        .append(i)
-                        .append(": Perceived Replication ")
-                        .append(fileInfo.getReplication(i))
-                        .append(System.lineSeparator());
-            }
+            FileInfo fileInfo = fileId != null ? fileMap.get(fileId) : null;
+            if (fileInfo == null || (filter != null && !path.contains(filter) && !fileId.startsWith(filter)))
+                continue;
+
+            if (fileCount++ < offset || files.size() >= limit)
+                continue;
 
-            stateInfo.append(System.lineSeparator());
+            int[] replication = new int[fileInfo.getChunkNum()];
+            for (int i = 0; i < replication.length; i++)
+                replication[i] = fileInfo.getReplication(i);
+
+            byte[] merkleRoot = fileInfo.getMerkleRoot();
+            files.add(new StorageState.FileState(path, fileId,
+                    merkleRoot == null ? null : String.format("%064x", new BigInteger(1, merkleRoot)),
+                    fileInfo.getReplicationDegree(), replication));
         }
 
-        stateInfo.append("- Stored Chunks:")
-                .append(System.lineSeparator())
-                .append(System.lineSeparator());
+        // Without a filter, the page is taken straight from the sorted keys
+        long[] keys = getSortedChunkKeys();
+        List<Long> pageKeys = new ArrayList<>();
+        int chunkCount = 0;
+        if (filter == null) {
+            chunkCount = keys.length;
+            for (int i = offset; i < keys.length && pageKeys.size() < limit; i++)
+                pageKeys.add(keys[i]);
+        } else {
+            for (long key : keys) {
+                // Keys of chunks removed since the keys were sorted may no longer have a file id
+                String fileId = ChunkKey.fileId(key);
+                if (fileId != null && fileId.startsWith(filter) && chunkCount++ >= offset && pageKeys.size() < limit)
+                    pageKeys.add(key);
+            }
+        }
 
-        for (String key : chunkMap.keySet()) {
+        List<StorageState.ChunkState> chunks = new ArrayList<>(pageKeys.size());
+        for (long key : pageKeys) {
             ChunkInfo chunkInfo = chunkMap.get(key);
+            StorageState.ChunkState state = chunkInfo != null ? chunkInfo.getState() : null;
+            if (state != null)
+                chunks.add(state);
+        }
 
-            stateInfo.append("  - ID (\"fileId\":\"chunkNo\"): ")
-                    .append(key)
-                    .append(System.lineSeparator())
-                    .append("  - Chunk Size: ")
-                    .append(chunkInfo.getChunkSize())
-                    .append(" KBytes")
-                    .append(System.lineSeparator())
-                    .append("  - Perceived replication: ")
-                    .append(chunkInfo.getReplication())
-                    .append(System.lineSeparator())
-                    .append(System.lineSeparator());
+        double maxStorage;
+        synchronized (storageLock) {
+            maxStorage = this.maxStorage;
         }
 
-        stateInfo.append("- Maximum Storage: ")
-                .append(StorageManager.maxStorage < Double.MAX_VALUE ?
-                        StorageManager.maxStorage + " KBytes"
-                        : "unlimited")
-                .append(System.lineSeparator())
-                .append("- Used Storage: ")
-                .append(StorageManager.usedStorage)
-                .append(" KBytes")
-                .append(System.lineSeparator());
+        return new StorageState(context.getId(), fileCount, chunkCount, reclaimIndex.countUnderReplicated(),
+                getStoredBytes(), maxStorage, offset, files, chunks);
+    }
 
-        return stateInfo.toString();
+    /**
+     * Retrieves the keys of the stored chunks in order, sorting them again only if a chunk was stored or removed since
+     * they were last sorted
+     *
+     * @return Sorted keys of the stored chunks
+     */
+    private long[] getSortedChunkKeys() {
+        long version = chunkVersion;
+        SortedKeys sortedKeys = this.sortedKeys;
+        if (sortedKeys != null && sortedKeys.version == version)
+            return sortedKeys.keys;
+
+        long[] keys = chunkMap.keys();
+        Arrays.sort(keys);
+        this.sortedKeys = new SortedKeys(version, keys);
+        return keys;
     }
 
     /**
      * Responsible for updating the maximum storage space and update the storage accordingly.
      *
+     * Chunks are deleted one at a time in the order of the reclaim index, so stores can proceed between deletions.
+     * @see ReclaimIndex
+     *
      * @param diskSpace New maximum storage space
      */
-    public static void reclaimSpace(double diskSpace) {
+    public void reclaimSpace(double diskSpace) {
         synchronized (storageLock) {
-            StorageManager.maxStorage = Double.max(0d, diskSpace);
+            this.maxStorage = Double.max(0d, diskSpace);
+            journal.maxStorage(this.maxStorage);
+        }
 
-            if (StorageManager.usedStorage <= StorageManager.maxStorage) return;
+        while (true) {
+            String fileId;
+            int chunkNo;
 
-            PriorityQueue<String> chunkQueue = new PriorityQueue<>(chunkMap.size(),
-                    Comparator.comparing(chunkMap::get));
-            chunkQueue.addAll(chunkMap.keySet());
+            synchronized (storageLock) {
+                if (getUsedStorage() <= this.maxStorage) return;
 
-            while (StorageManager.usedStorage > StorageManager.maxStorage) {
-                String key = Objects.requireNonNull(chunkQueue.poll());
-                String[] keySplit = key.split(":");
+                ChunkInfo chunkInfo = reclaimIndex.poll();
+                if (chunkInfo == null) return;
 
-                ChunkInfo chunkInfo = chunkMap.remove(key);
-                StorageManager.usedStorage -= chunkInfo.getChunkSize();
+                // The file id of the chunk is only known until its key is released
+                fileId = chunkInfo.getFileId();
+                chunkNo = chunkInfo.getChunkNo();
+                removeChunk(chunkInfo);
                 chunkInfo.delete();
-
-                Peer.mc.sendMessage(new String[] {"REMOVED", Peer.getProtocolVersion(), Peer.getId(),
-                        keySplit[0], keySplit[1]} );
             }
+
+            context.mc.sendMessage(new Message(MessageType.REMOVED, context.getProtocolVersion(), context.getId(),
+                    fileId, chunkNo, 0));
+        }
+    }
+
+    /**
+     * Retrieves the storage used by the stored chunks, counting contents shared by several chunks only once
+     *
+     * @return Used storage, in KBytes
+     */
+    private double getUsedStorage() {
+        return chunkStore.getSize() / 1000d;
+    }
+
+    /**
+     * @return Size of the distinct contents of the stored chunks, in bytes, or 0 before the storage is set up
+     */
+    public long getStoredBytes() {
+        ChunkStore chunkStore = this.chunkStore;
+        return chunkStore != null ? chunkStore.getSize() : 0;
+    }
+
+    /**
+     * Copies the state of the stored chunks for a checkpoint of the replication journal
+     *
+     * Chunks are added and removed along with their journal records under the storage lock, so the copy reflects
+     * every record appended before it was taken.
+     *
+     * @return State of the stored chunks
+     */
+    private Collection<StorageState.ChunkState> copyChunks() {
+        synchronized (storageLock) {
+            List<StorageState.ChunkState> chunks = new ArrayList<>(chunkMap.size());
+            for (ChunkInfo chunkInfo : chunkMap.values())
+                chunks.add(chunkInfo.getState());
+
+            return chunks;
+        }
+    }
+
+    private double getMaxStorage() {
+        synchronized (storageLock) {
+            return maxStorage;
+        }
+    }
+
+    /**
+     * Adds a stored chunk to the primary, the per file and the reclaim index. Must be called with the storage lock held
+     *
+     * @param chunkInfo Information about the chunk
+     */
+    private void addChunk(ChunkInfo chunkInfo) {
+        chunkMap.put(chunkInfo.getKey(), chunkInfo);
+        reclaimIndex.add(chunkInfo);
+        fileChunks.computeIfAbsent(chunkInfo.getFileId(), (id) -> new ChunkSet()).add(chunkInfo.getChunkNo());
+        chunkVersion++;
+    }
+
+    /**
+     * Removes a stored chunk from the primary, the per file and the reclaim index. Must be called with the storage lock
+     * held
+     *
+     * @param chunkInfo Information about the chunk
+     */
+    private void removeChunk(ChunkInfo chunkInfo) {
+        chunkMap.remove(chunkInfo.getKey());
+        reclaimIndex.remove(chunkInfo);
+
+        ChunkSet chunks = fileChunks.get(chunkInfo.getFileId());
+        chunks.remove(chunkInfo.getChunkNo());
+        if (chunks.isEmpty())
+            fileChunks.remove(chunkInfo.getFileId());
+        chunkVersion++;
+    }
+
+    /**
+     * Sorted keys of the stored chunks, along with the version of the stored chunks they were taken from
+     */
+    private static class SortedKeys {
+        private final long version;
+        private final long[] keys;
+
+        SortedKeys(long version, long[] keys) {
+            this.version = version;
+            this.keys = keys;
         }
     }
 }
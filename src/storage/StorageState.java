@@ -0,0 +1,257 @@
+package storage;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Snapshot of the storage of a peer, as returned to the clients over RMI
+ *
+ * The snapshot holds the totals of the peer's storage and a single page of its backed up files and of its stored
+ * chunks, both in a stable order, so that a large storage can be fetched a page at a time. Its text form is the
+ * human readable state of the peer.
+ *
+ * @see StorageManager#getState(String, int, int)
+ */
+public class StorageState implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int peerId;
+    private final int fileCount, chunkCount, underReplicatedChunks;
+    private final long usedStorage;
+    private final double maxStorage;
+    private final int offset;
+    private final List<FileState> files;
+    private final List<ChunkState> chunks;
+
+    /**
+     * @param peerId Id of the peer
+     * @param fileCount Number of backed up files matching the filter
+     * @param chunkCount Number of stored chunks matching the filter
+     * @param underReplicatedChunks Number of stored chunks below their desired replication degree
+     * @param usedStorage Storage used by the stored chunks, in bytes
+     * @param maxStorage Maximum storage, in KBytes
+     * @param offset Position of the page on the backed up files and on the stored chunks
+     * @param files Page of the backed up files
+     * @param chunks Page of the stored chunks
+     */
+    StorageState(int peerId, int fileCount, int chunkCount, int underReplicatedChunks, long usedStorage,
+                 double maxStorage, int offset, List<FileState> files, List<ChunkState> chunks) {
+        this.peerId = peerId;
+        this.fileCount = fileCount;
+        this.chunkCount = chunkCount;
+        this.underReplicatedChunks = underReplicatedChunks;
+        this.usedStorage = usedStorage;
+        this.maxStorage = maxStorage;
+        this.offset = offset;
+        this.files = files;
+        this.chunks = chunks;
+    }
+
+    public int getPeerId() {
+        return peerId;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public int getUnderReplicatedChunks() {
+        return underReplicatedChunks;
+    }
+
+    public long getUsedStorage() {
+        return usedStorage;
+    }
+
+    /**
+     * @return Maximum storage, in KBytes, or Double.MAX_VALUE if unlimited
+     */
+    public double getMaxStorage() {
+        return maxStorage;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public List<FileState> getFiles() {
+        return files;
+    }
+
+    public List<ChunkState> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * Builds the human readable state of the peer, covering the files and chunks of this page
+     *
+     * @return Text of the state
+     */
+    @Override
+    public String toString() {
+        StringBuilder stateInfo = new StringBuilder("Peer(" + peerId + ") - Current State" + System.lineSeparator());
+
+        stateInfo.append("- Backed up Files:")
+                .append(System.lineSeparator())
+                .append(System.lineSeparator());
+
+        for (FileState file : files) {
+            stateInfo.append("  - File Path: ")
+                    .append(file.getPath())
+                    .append(System.lineSeparator())
+                    .append("  - File Id: ")
+                    .append(file.getFileId())
+                    .append(System.lineSeparator())
+                    .append(file.getContentHash() == null ? "" : "  - Content Hash: " + file.getContentHash() +
+                            System.lineSeparator())
+                    .append("  - Desired Replication Degree: ")
+                    .append(file.getReplicationDegree())
+                    .append(System.lineSeparator());
+
+            for (int i = 0; i < file.getChunkNum(); i++) {
+                stateInfo.append("    - Chunk ")
+                        .append(i)
+                        .append(": Perceived Replication ")
+                        .append(file.getReplication(i))
+                        .append(System.lineSeparator());
+            }
+
+            stateInfo.append(System.lineSeparator());
+        }
+
+        stateInfo.append("- Stored Chunks:")
+                .append(System.lineSeparator())
+                .append(System.lineSeparator());
+
+        for (ChunkState chunk : chunks) {
+            stateInfo.append("  - ID (\"fileId\":\"chunkNo\"): ")
+                    .append(chunk.getFileId())
+                    .append(':')
+                    .append(chunk.getChunkNo())
+                    .append(System.lineSeparator())
+                    .append("  - Chunk Size: ")
+                    .append(chunk.getChunkSize() / 1000d)
+                    .append(" KBytes")
+                    .append(System.lineSeparator())
+                    .append("  - Perceived replication: ")
+                    .append(chunk.getReplication())
+                    .append(System.lineSeparator())
+                    .append(System.lineSeparator());
+        }
+
+        stateInfo.append("- Maximum Storage: ")
+                .append(maxStorage < Double.MAX_VALUE ?
+                        maxStorage + " KBytes"
+                        : "unlimited")
+                .append(System.lineSeparator())
+                .append("- Used Storage: ")
+                .append(usedStorage / 1000d)
+                .append(" KBytes")
+                .append(System.lineSeparator());
+
+        return stateInfo.toString();
+    }
+
+    /**
+     * State of a file backed up by the peer
+     */
+    public static class FileState implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String path, fileId, contentHash;
+        private final int replicationDegree;
+        private final int[] replication;
+
+        /**
+         * @param path Path of the file
+         * @param fileId Id of the file
+         * @param contentHash Merkle root of the file's chunks, in hexadecimal, or null if not computed yet. It is only
+         *                    informational, telling apart the contents of backed up files
+         * @param replicationDegree Desired replication degree of the file
+         * @param replication Perceived replication of each chunk of the file
+         */
+        FileState(String path, String fileId, String contentHash, int replicationDegree, int[] replication) {
+            this.path = path;
+            this.fileId = fileId;
+            this.contentHash = contentHash;
+            this.replicationDegree = replicationDegree;
+            this.replication = replication;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public int getReplicationDegree() {
+            return replicationDegree;
+        }
+
+        public int getChunkNum() {
+            return replication.length;
+        }
+
+        public int getReplication(int chunkNo) {
+            return replication[chunkNo];
+        }
+    }
+
+    /**
+     * State of a chunk stored by the peer
+     */
+    public static class ChunkState implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String fileId;
+        private final int chunkNo, chunkSize, replication, replicationDegree;
+
+        /**
+         * @param fileId Id of the chunk's file
+         * @param chunkNo Id of the chunk
+         * @param chunkSize Size of the chunk, in bytes
+         * @param replication Perceived replication of the chunk
+         * @param replicationDegree Desired replication degree of the chunk
+         */
+        ChunkState(String fileId, int chunkNo, int chunkSize, int replication, int replicationDegree) {
+            this.fileId = fileId;
+            this.chunkNo = chunkNo;
+            this.chunkSize = chunkSize;
+            this.replication = replication;
+            this.replicationDegree = replicationDegree;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public int getChunkNo() {
+            return chunkNo;
+        }
+
+        /**
+         * @return Size of the chunk, in bytes
+         */
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getReplication() {
+            return replication;
+        }
+
+        public int getReplicationDegree() {
+            return replicationDegree;
+        }
+    }
+}
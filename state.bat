@@ -5,4 +5,4 @@ set TESTAPP-MAIN="client.TestApp"
 
 set PEER-ID=%1
 
-java --class-path %CLASS-PATH% %TESTAPP-MAIN% "accesspoint%PEER-ID%" "STATE"
\ No newline at end of file
+java --class-path %CLASS-PATH% %TESTAPP-MAIN% "accesspoint%PEER-ID%" "STATE" %2 %3 %4
\ No newline at end of file
@@ -5,4 +5,4 @@ TESTAPP_MAIN="client.TestApp"
 
 PEER_ID=$1
 
-java --class-path $CLASS_PATH $TESTAPP_MAIN "accesspoint$PEER_ID" "STATE"
\ No newline at end of file
+java --class-path $CLASS_PATH $TESTAPP_MAIN "accesspoint$PEER_ID" "STATE" $2 $3 $4
\ No newline at end of file